@@ -0,0 +1,64 @@
+package hybridstats.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.biojava.bio.seq.io.ParseException;
+import org.biojavax.bio.phylo.io.nexus.TreesBlock;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import hybridstats.CompoundStat;
+import hybridstats.Forest;
+import hybridstats.ForestGenerator;
+import hybridstats.HybridStats;
+import hybridstats.SplitCounts;
+import pal.tree.TreeParseException;
+
+/**
+ * Benchmark fixture: one generated forest per (nTaxa, nTrees, discordance) point,
+ * plus the structures derived from it, so each benchmark times only its own step.
+ */
+@State(Scope.Benchmark)
+public class ForestState {
+	@Param({"8", "16", "32"})
+	public int nTaxa;
+	@Param({"100", "1000"})
+	public int nTrees;
+	@Param({"0.0", "0.1", "0.5"})
+	public double discordance;
+	
+	private static final long SEED = 20150602L;
+	private static final String COMPOUND = "bench(0.5) 1.0 : 1.0e-2*TE : 1.0e-6*SI*DC : 1.0e-3*QE*US : 2.0e-1*RS1";
+	
+	public File newickFile;
+	public TreesBlock treesBlock;
+	public Forest forest;
+	public SplitCounts splitCounts;
+	public HybridStats hybridStats;
+	public CompoundStat compoundStat;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, TreeParseException, ParseException {
+		ForestGenerator generator = new ForestGenerator(nTaxa, ForestGenerator.Model.COALESCENT, discordance, SEED);
+		newickFile = File.createTempFile("hybridstats-bench", ".tre");
+		PrintWriter out = new PrintWriter(newickFile);
+		generator.writeNewick(out, nTrees);
+		out.close();
+		forest = new Forest(newickFile.getPath());
+		treesBlock = forest.toTreesBlock("benchmark forest");
+		splitCounts = new SplitCounts(forest);
+		hybridStats = new HybridStats(forest);
+		compoundStat = new CompoundStat(COMPOUND);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		newickFile.delete();
+	}
+}
@@ -0,0 +1,85 @@
+package hybridstats.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import hybridstats.Forest;
+import hybridstats.QuartetEntropy;
+import hybridstats.SplitCounts;
+import hybridstats.TreeTopologyCounts;
+import pal.tree.Tree;
+import pal.tree.TreeParseException;
+
+/**
+ * JMH benchmarks for the steps making up a HybridStats calculation.
+ * Each benchmark is run over the full (nTaxa, nTrees, discordance) sweep of ForestState.
+ * 
+ * Typical invocation (jmh-core and its annotation processor on the classpath 
+ * along with the HybridStats dependencies):
+ * java -cp ... org.openjdk.jmh.Main hybridstats.bench -rf csv -rff bench_output.csv
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HybridStatsBenchmark {
+	
+	@Benchmark
+	public Forest parseNewickFile(ForestState state) throws IOException, TreeParseException {
+		return new Forest(state.newickFile.getPath());
+	}
+	
+	@Benchmark
+	public Forest parseTreesBlock(ForestState state) throws IOException, TreeParseException {
+		return new Forest(state.treesBlock);
+	}
+	
+	@Benchmark
+	public SplitCounts splitCountsAddTree(ForestState state) {
+		SplitCounts splitCounts = new SplitCounts();
+		for (Tree tree : state.forest) splitCounts.addTree(tree);
+		return splitCounts;
+	}
+	
+	@Benchmark
+	public int splitIncompatibility(ForestState state) {
+		return state.splitCounts.weightedPairwiseSplitIncompatibility();
+	}
+	
+	@Benchmark
+	public double quartetEntropy(ForestState state) {
+		return QuartetEntropy.entropy(state.forest);
+	}
+	
+	@Benchmark
+	public int[] treeTopologyCounts(ForestState state) {
+		return new TreeTopologyCounts(state.forest).getCounts();
+	}
+	
+	/*
+	 * greedyConsensusTree(true) forces a fresh sort with new tie breaks, 
+	 * so the IC/ICA calls below it are not served from the cache.
+	 */
+	@Benchmark
+	public void greedyConsensusAndIC(ForestState state, Blackhole bh) {
+		SplitCounts splitCounts = state.splitCounts;
+		bh.consume(splitCounts.greedyConsensusTree(true));
+		bh.consume(splitCounts.treeCertainty());
+		bh.consume(splitCounts.treeCertaintyAll(0));
+	}
+	
+	@Benchmark
+	public double compoundStatEvaluate(ForestState state) {
+		return state.compoundStat.evaluate(state.hybridStats);
+	}
+}
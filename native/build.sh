@@ -0,0 +1,72 @@
+#!/bin/bash
+# Build fast-start distributions of the hybridstats command line (hybridstats.Main):
+#  - native/build/hybridstats: GraalVM native-image executable
+#  - native/build/hybridstats.jsa: AppCDS archive for the regular JVM (see hybridstats-jvm.sh)
+#
+# Usage: native/build.sh <classpath>
+# where <classpath> holds the compiled src/ classes and the biojava, PAL, palExtensions,
+# biojavaExtensions and mdwUtils classes/jars. GRAALVM_HOME must point to a GraalVM with
+# native-image; otherwise only the AppCDS archive is built.
+#
+# Reflection/resource configuration (biojava's Nexus parsing loads classes reflectively) is
+# recorded by the native-image tracing agent from training runs over generated forests, so it
+# matches the biojava jar actually on the classpath.
+set -e
+
+if [ $# -ne 1 ]; then
+	echo "Usage: $0 <classpath>" >&2
+	exit 1
+fi
+CP="$1"
+DIR="$(cd "$(dirname "$0")" && pwd)"
+BUILD="$DIR/build"
+CONFIG="$BUILD/config"
+JAVA="${GRAALVM_HOME:+$GRAALVM_HOME/bin/}java"
+mkdir -p "$BUILD" "$CONFIG"
+
+# Training data: a small coalescent and a medium yule forest, as Nexus trees blocks labelled by model
+"$JAVA" -cp "$CP" hybridstats.ForestGenerator 12 50 0.3 1 coalescent nexus "$BUILD/train-small.nex"
+"$JAVA" -cp "$CP" hybridstats.ForestGenerator 40 500 0.5 2 yule nexus "$BUILD/train-medium.nex"
+
+# Each mode of Main: human friendly, lineage trees, batch
+MODES="human lineage batch"
+training_run() {
+	local mode=$1
+	shift
+	case $mode in
+	human)   "$JAVA" "$@" -cp "$CP" hybridstats.Main "$BUILD/train-small.nex" ;;
+	lineage) "$JAVA" "$@" -cp "$CP" hybridstats.Main -l -t '\[Randomly selected yule.*' "$BUILD/train-medium.nex" ;;
+	batch)   "$JAVA" "$@" -cp "$CP" hybridstats.Main -b -t '\[Randomly selected (coalescent|yule).*' "$BUILD/train-small.nex" "$BUILD/train-medium.nex" ;;
+	esac > /dev/null
+}
+training_runs() {
+	for mode in $MODES; do training_run $mode "$@"; done
+}
+
+# AppCDS: archive every class loaded by the training runs. A dynamic archive only covers one run,
+# so list the classes each mode loads, and dump a static archive of their union (JDK 10+; only
+# classes loaded from jars are archived).
+# Class list ids differ between runs: drop them, and the lambda/constant pool entries that use them.
+rm -f "$BUILD/hybridstats.jsa" "$BUILD"/classlist*
+for mode in $MODES; do
+	training_run $mode -XX:DumpLoadedClassList="$BUILD/classlist-$mode"
+done
+cat "$BUILD"/classlist-* | grep -v '^[@#]' | sed 's/ id: .*//' | sort -u > "$BUILD/classlist"
+"$JAVA" -Xshare:dump -XX:SharedClassListFile="$BUILD/classlist" -XX:SharedArchiveFile="$BUILD/hybridstats.jsa" -cp "$CP" > /dev/null
+echo "Built $BUILD/hybridstats.jsa"
+
+if [ -z "$GRAALVM_HOME" ] || [ ! -x "$GRAALVM_HOME/bin/native-image" ]; then
+	echo "GRAALVM_HOME not set (or has no native-image): skipping native executable"
+	exit 0
+fi
+
+training_runs -agentlib:native-image-agent=config-merge-dir="$CONFIG"
+
+"$GRAALVM_HOME/bin/native-image" \
+	-cp "$CP" \
+	--no-fallback \
+	-H:ConfigurationFileDirectories="$CONFIG" \
+	-H:+ReportExceptionStackTraces \
+	-o "$BUILD/hybridstats" \
+	hybridstats.Main
+echo "Built $BUILD/hybridstats"
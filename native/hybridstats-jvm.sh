@@ -0,0 +1,8 @@
+#!/bin/bash
+# Run hybridstats.Main on the regular JVM with the AppCDS archive made by build.sh,
+# tuned for short runs: C1 only, serial GC, small heap to start.
+# Usage: HYBRIDSTATS_CP=<classpath> native/hybridstats-jvm.sh [Main arguments]
+DIR="$(cd "$(dirname "$0")" && pwd)"
+exec java -XX:SharedArchiveFile="$DIR/build/hybridstats.jsa" -Xshare:auto \
+	-XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xms64m \
+	-cp "${HYBRIDSTATS_CP:?set HYBRIDSTATS_CP to the classpath used by build.sh}" hybridstats.Main "$@"
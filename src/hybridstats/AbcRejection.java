@@ -0,0 +1,255 @@
+package hybridstats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ABC rejection step: compares the CompoundStats of an observed data set against those of
+ * many simulated data sets.
+ *
+ * A simulated data set is accepted iff every CompoundStat value lies in the range given by
+ * CompoundStat.evaluateRange for the observed data, i.e. within scale*stdev of the observed value.
+ * Alternatively, distances sqrt(sum_k ((sim_k-obs_k)/stdev_k)^2) can be computed, for
+ * nearest-n acceptance or regression adjustment.
+ *
+ * Simulated base stats (TE, SI, QE, RS1, SI-2 etc.) are given column wise: one double[] per stat,
+ * indexed by simulation. Each CompoundStat is compiled to column indices once, and is evaluated
+ * over blocks of rows in plain loops over primitive arrays (which the JIT can vectorize),
+ * with blocks spread over a thread pool.
+ *
+ * @author woodhams
+ *
+ */
+public class AbcRejection {
+	private static final int BLOCK = 4096; // rows per inner loop block
+	private static final int ROWS_PER_TASK = 1<<18;
+
+	private final int nStats;
+	private final String[] names;
+	private final double[] observed; // observed value of each CompoundStat
+	private final double[] lower;    // acceptance range
+	private final double[] upper;
+	private final double[] error;
+	// terms of compound stat k: termCoef[k][t] * product of columns termColumns[k][t][]
+	private final double[][] termCoef;
+	private final int[][][] termColumns;
+	private final int nColumns;
+
+	public AbcRejection(HybridStats observedStats, SummaryStatParameters params, String[] columnNames, double scale) {
+		this(observedStats, toList(params.compoundStatIterator()), columnNames, scale);
+	}
+
+	/**
+	 * @param observedStats: stats of the observed data
+	 * @param compoundStats: the stats to compare
+	 * @param columnNames: base stat name of each column of the simulated data, as HybridStats.getStatByName
+	 * @param scale: acceptance range is observed +/- scale*stdev (as CompoundStat.evaluateRange)
+	 */
+	public AbcRejection(HybridStats observedStats, List<CompoundStat> compoundStats, String[] columnNames, double scale) {
+		nStats = compoundStats.size();
+		nColumns = columnNames.length;
+		HashMap<String,Integer> columnOf = new HashMap<String,Integer>();
+		for (int c=0; c<columnNames.length; c++) columnOf.put(columnNames[c], c);
+		names = new String[nStats];
+		observed = new double[nStats];
+		lower = new double[nStats];
+		upper = new double[nStats];
+		error = new double[nStats];
+		termCoef = new double[nStats][];
+		termColumns = new int[nStats][][];
+		Double[] range = new Double[2];
+		for (int k=0; k<nStats; k++) {
+			CompoundStat compound = compoundStats.get(k);
+			names[k] = compound.getName();
+			observed[k] = compound.evaluate(observedStats);
+			compound.evaluateRange(observedStats, range, scale);
+			lower[k] = range[0];
+			upper[k] = range[1];
+			error[k] = compound.getError();
+			List<CompoundCoefficient> coefficients = compound.getCoefficients();
+			termCoef[k] = new double[coefficients.size()];
+			termColumns[k] = new int[coefficients.size()][];
+			for (int t=0; t<coefficients.size(); t++) {
+				CompoundCoefficient coefficient = coefficients.get(t);
+				termCoef[k][t] = coefficient.getCoefficient();
+				ArrayList<Integer> columns = new ArrayList<Integer>();
+				for (String var : coefficient.getVariables()) {
+					if (var.equals("1")) continue; // constant
+					Integer column = columnOf.get(var);
+					if (column==null) throw new IllegalArgumentException("Compound stat '"+names[k]+"' needs stat '"+var+"', which is not a simulated column");
+					columns.add(column);
+				}
+				termColumns[k][t] = new int[columns.size()];
+				for (int i=0; i<columns.size(); i++) termColumns[k][t][i] = columns.get(i);
+			}
+		}
+	}
+
+	private static List<CompoundStat> toList(Iterator<CompoundStat> iter) {
+		ArrayList<CompoundStat> list = new ArrayList<CompoundStat>();
+		while (iter.hasNext()) list.add(iter.next());
+		return list;
+	}
+
+	/**
+	 * @param columns: columns[c][i] = value of stat columnNames[c] for simulation i
+	 * @return indices (ascending) of the accepted simulations
+	 */
+	public int[] accept(final double[][] columns, int nThreads) {
+		final int nRows = checkColumns(columns);
+		List<int[]> parts = runTasks(nRows, nThreads, new RangeTask<int[]>() {
+			int[] run(int from, int to) {
+				return acceptRange(columns, from, to);
+			}
+		});
+		int total = 0;
+		for (int[] part : parts) total += part.length;
+		int[] accepted = new int[total];
+		int pos = 0;
+		for (int[] part : parts) {
+			System.arraycopy(part, 0, accepted, pos, part.length);
+			pos += part.length;
+		}
+		return accepted;
+	}
+
+	/**
+	 * @return distance of each simulation from the observed data, in units of CompoundStat stdev.
+	 */
+	public double[] distances(final double[][] columns, int nThreads) {
+		for (int k=0; k<nStats; k++) {
+			if (!(error[k]>0)) throw new IllegalArgumentException("Compound stat '"+names[k]+"' needs a positive stdev for distances");
+		}
+		final int nRows = checkColumns(columns);
+		final double[] dist = new double[nRows];
+		runTasks(nRows, nThreads, new RangeTask<Void>() {
+			Void run(int from, int to) {
+				distanceRange(columns, dist, from, to);
+				return null;
+			}
+		});
+		return dist;
+	}
+
+	private int checkColumns(double[][] columns) {
+		if (columns.length!=nColumns) throw new IllegalArgumentException("Expected "+nColumns+" columns of simulated stats, got "+columns.length);
+		int nRows = (nColumns==0) ? 0 : columns[0].length;
+		for (double[] column : columns) {
+			if (column.length!=nRows) throw new IllegalArgumentException("Simulated stat columns differ in length");
+		}
+		return nRows;
+	}
+
+	private int[] acceptRange(double[][] columns, int from, int to) {
+		double[] value = new double[BLOCK];
+		double[] term = new double[BLOCK];
+		boolean[] ok = new boolean[BLOCK];
+		int[] accepted = new int[Math.min(to-from, BLOCK)];
+		int nAccepted = 0;
+		for (int start=from; start<to; start+=BLOCK) {
+			int len = Math.min(BLOCK, to-start);
+			Arrays.fill(ok, 0, len, true);
+			for (int k=0; k<nStats; k++) {
+				evaluateBlock(k, columns, start, len, value, term);
+				double lo = lower[k], hi = upper[k];
+				for (int r=0; r<len; r++) ok[r] &= (value[r]>=lo) & (value[r]<=hi);
+			}
+			for (int r=0; r<len; r++) {
+				if (ok[r]) {
+					if (nAccepted==accepted.length) accepted = Arrays.copyOf(accepted, 2*accepted.length);
+					accepted[nAccepted++] = start+r;
+				}
+			}
+		}
+		return Arrays.copyOf(accepted, nAccepted);
+	}
+
+	private void distanceRange(double[][] columns, double[] dist, int from, int to) {
+		double[] value = new double[BLOCK];
+		double[] term = new double[BLOCK];
+		for (int start=from; start<to; start+=BLOCK) {
+			int len = Math.min(BLOCK, to-start);
+			for (int k=0; k<nStats; k++) {
+				evaluateBlock(k, columns, start, len, value, term);
+				double obs = observed[k], inverse = 1/error[k];
+				for (int r=0; r<len; r++) {
+					double d = (value[r]-obs)*inverse;
+					dist[start+r] += d*d;
+				}
+			}
+			for (int r=0; r<len; r++) dist[start+r] = Math.sqrt(dist[start+r]);
+		}
+	}
+
+	/*
+	 * value[0..len) = compound stat k for rows start..start+len
+	 */
+	private void evaluateBlock(int k, double[][] columns, int start, int len, double[] value, double[] term) {
+		Arrays.fill(value, 0, len, 0.0);
+		for (int t=0; t<termCoef[k].length; t++) {
+			Arrays.fill(term, 0, len, termCoef[k][t]);
+			for (int c : termColumns[k][t]) {
+				double[] column = columns[c];
+				for (int r=0; r<len; r++) term[r] *= column[start+r];
+			}
+			for (int r=0; r<len; r++) value[r] += term[r];
+		}
+	}
+
+	private static abstract class RangeTask<T> {
+		abstract T run(int from, int to);
+	}
+
+	/*
+	 * Split 0..nRows into chunks, run them on a pool, return results in chunk order.
+	 */
+	private static <T> List<T> runTasks(int nRows, int nThreads, final RangeTask<T> task) {
+		List<T> results = new ArrayList<T>();
+		if (nThreads<=1 || nRows<=ROWS_PER_TASK) {
+			results.add(task.run(0, nRows));
+			return results;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for (int from=0; from<nRows; from+=ROWS_PER_TASK) {
+				final int start = from;
+				final int end = Math.min(from+ROWS_PER_TASK, nRows);
+				futures.add(pool.submit(new Callable<T>() {
+					public T call() {
+						return task.run(start, end);
+					}
+				}));
+			}
+			for (Future<T> future : futures) results.add(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted in ABC rejection", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error in ABC rejection", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return results;
+	}
+
+	public int getNumberStats() {
+		return nStats;
+	}
+
+	public String getStatName(int k) {
+		return names[k];
+	}
+
+	public double getObservedValue(int k) {
+		return observed[k];
+	}
+}
@@ -0,0 +1,337 @@
+package hybridstats;
+
+import java.util.HashMap;
+
+import pal.misc.IdGroup;
+import pal.tree.Tree;
+import palExtensions.IdGroupUtils;
+import palExtensions.NeoSplitSystem;
+import palExtensions.NeoSplitUtils;
+import palExtensions.Split;
+
+/**
+ * Split counting in bounded memory, for unbounded streams of trees (e.g. genome scan windows).
+ *
+ * Uses the Space-Saving algorithm (Metwally, Agrawal and El Abbadi, 2005): at most 'capacity' splits
+ * are monitored, and when a new split arrives with the table full, it replaces the split with
+ * the smallest count, inheriting that count as its error. Every estimated count c' satisfies
+ * c'-error <= c <= c', and every split with true count above the minimum monitored count is monitored,
+ * so frequent splits (hence DC, majority rule and greedy consensus trees, IC) are accurate.
+ *
+ * The number of distinct splits (US, and through it RS#) is estimated separately by a HyperLogLog sketch.
+ *
+ * Memory is fixed by 'capacity' and 'hllBits', independent of the number of trees.
+ *
+ * @author woodhams
+ *
+ */
+public class ApproximateSplitCounts {
+	public static final int DEFAULT_HLL_BITS = 12; // 4096 registers, ~1.6% standard error
+
+	private final int capacity;
+	private final HashMap<String,Integer> slotOf; // split hex string -> slot
+	private final String[] keys;
+	private final Split[] splits;
+	private final int[] counts;
+	private final int[] errors;
+	// min-heap of slots, by count
+	private final int[] heap;
+	private final int[] heapPos;
+	private int size;
+	private final byte[] registers; // HyperLogLog
+	private final int hllBits;
+	private IdGroup idg;
+	private int nTrees;
+	private long nSplits;
+
+	/**
+	 * An estimate with guaranteed (or for US, RS#: ~95% confidence) lower and upper bounds.
+	 */
+	public static class Estimate {
+		public final double value;
+		public final double lower;
+		public final double upper;
+
+		Estimate(double value, double lower, double upper) {
+			this.value = value;
+			this.lower = lower;
+			this.upper = upper;
+		}
+
+		public String toString() {
+			return String.format("%.1f [%.1f, %.1f]", value, lower, upper);
+		}
+	}
+
+	public ApproximateSplitCounts(int capacity) {
+		this(capacity, DEFAULT_HLL_BITS);
+	}
+
+	/**
+	 * @param capacity: maximum number of splits monitored
+	 * @param hllBits: HyperLogLog uses 2^hllBits registers (4 to 16)
+	 */
+	public ApproximateSplitCounts(int capacity, int hllBits) {
+		if (capacity<1) throw new IllegalArgumentException("Capacity must be positive");
+		if (hllBits<4 || hllBits>16) throw new IllegalArgumentException("hllBits must be in 4..16");
+		this.capacity = capacity;
+		this.hllBits = hllBits;
+		slotOf = new HashMap<String,Integer>(2*capacity);
+		keys = new String[capacity];
+		splits = new Split[capacity];
+		counts = new int[capacity];
+		errors = new int[capacity];
+		heap = new int[capacity];
+		heapPos = new int[capacity];
+		registers = new byte[1<<hllBits];
+		size = 0;
+		idg = null;
+		nTrees = 0;
+		nSplits = 0;
+	}
+
+	public void addForest(Forest forest) {
+		// as SplitCounts.addForest: with a shared taxon set, only the first tree's IdGroup need be checked
+		boolean sameTaxa = (forest.getTaxa()!=null);
+		for (int i=0; i<forest.size(); i++) {
+			addTree(forest.get(i), forest.getWeight(i), i==0 || !sameTaxa);
+		}
+	}
+
+	public void addTree(Tree tree) {
+		addTree(tree, 1);
+	}
+
+	public void addTree(Tree tree, int weight) {
+		addTree(tree, weight, true);
+	}
+
+	private void addTree(Tree tree, int weight, boolean checkTaxa) {
+		if (weight<1) throw new IllegalArgumentException("Tree weight must be positive, got "+weight);
+		NeoSplitSystem splitSys = NeoSplitUtils.getSplits(tree);
+		if (idg==null) idg = splitSys.getIdGroup();
+		if (checkTaxa && !IdGroupUtils.equals(idg,splitSys.getIdGroup())) throw new IllegalArgumentException("Tried to add split on different taxon set");
+		for (Split split : splitSys) {
+			String hex = split.toHexString();
+			offer(hex, split, weight, nTrees+weight);
+			hllAdd(hex);
+			nSplits += weight;
+		}
+		nTrees += weight;
+	}
+
+	/*
+	 * maxCount: the number of trees including this one, which no split's count can exceed.
+	 */
+	private void offer(String hex, Split split, int weight, int maxCount) {
+		Integer slot = slotOf.get(hex);
+		if (slot!=null) {
+			counts[slot] += weight;
+			siftDown(heapPos[slot]);
+		} else if (size<capacity) {
+			int newSlot = size;
+			keys[newSlot] = hex;
+			splits[newSlot] = split;
+			counts[newSlot] = weight;
+			errors[newSlot] = 0;
+			slotOf.put(hex, newSlot);
+			heap[size] = newSlot;
+			heapPos[newSlot] = size;
+			size++;
+			siftUp(size-1);
+		} else {
+			// replace the minimum
+			int victim = heap[0];
+			int min = counts[victim];
+			slotOf.remove(keys[victim]);
+			keys[victim] = hex;
+			splits[victim] = split;
+			// min+weight overestimates, and if capacity is below the number of splits per tree,
+			// can exceed the number of trees: clamp it (still >= min, so the heap order holds.)
+			counts[victim] = Math.min(min+weight, maxCount);
+			errors[victim] = counts[victim]-weight;
+			slotOf.put(hex, victim);
+			siftDown(0);
+		}
+	}
+
+	private void siftUp(int pos) {
+		while (pos>0) {
+			int parent = (pos-1)/2;
+			if (counts[heap[parent]]<=counts[heap[pos]]) break;
+			swap(pos, parent);
+			pos = parent;
+		}
+	}
+
+	private void siftDown(int pos) {
+		while (true) {
+			int smallest = pos;
+			int left = 2*pos+1, right = left+1;
+			if (left<size  && counts[heap[left]]<counts[heap[smallest]])  smallest = left;
+			if (right<size && counts[heap[right]]<counts[heap[smallest]]) smallest = right;
+			if (smallest==pos) return;
+			swap(pos, smallest);
+			pos = smallest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int temp = heap[i];
+		heap[i] = heap[j];
+		heap[j] = temp;
+		heapPos[heap[i]] = i;
+		heapPos[heap[j]] = j;
+	}
+
+	/*
+	 * HyperLogLog (Flajolet et al. 2007)
+	 */
+	private void hllAdd(String hex) {
+		long h = hash64(hex);
+		int register = (int)(h >>> (64-hllBits));
+		long rest = h << hllBits;
+		int rank = Math.min(Long.numberOfLeadingZeros(rest), 64-hllBits)+1;
+		if (rank>registers[register]) registers[register] = (byte)rank;
+	}
+
+	// FNV-1a, then a 64 bit finalizer for better mixing of the high bits
+	private static long hash64(String str) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0; i<str.length(); i++) {
+			h ^= str.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private double hllEstimate() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte r : registers) {
+			sum += Math.pow(2, -r);
+			if (r==0) zeros++;
+		}
+		double alpha = 0.7213/(1+1.079/m);
+		double estimate = alpha*m*m/sum;
+		// small range correction: linear counting
+		if (estimate<=2.5*m && zeros>0) estimate = m*Math.log((double)m/zeros);
+		return estimate;
+	}
+
+	private int minMonitoredCount() {
+		return (size==0) ? 0 : counts[heap[0]];
+	}
+
+	private boolean full() {
+		return size==capacity;
+	}
+
+	public int getNumberTrees() {
+		return nTrees;
+	}
+
+	public long totalNumberSplits() {
+		return nSplits;
+	}
+
+	/**
+	 * Estimated count of a split. value is an overestimate, lower is a guaranteed lower bound.
+	 * For an unmonitored split, the count is at most the smallest monitored count.
+	 */
+	public Estimate getCount(Split split) {
+		Integer slot = slotOf.get(split.toHexString());
+		if (slot==null) return new Estimate(0, 0, full() ? minMonitoredCount() : 0);
+		return new Estimate(counts[slot], counts[slot]-errors[slot], counts[slot]);
+	}
+
+	/**
+	 * The monitored splits with their estimated counts, as a SplitCounts, for
+	 * greedy/majority rule consensus trees and IC/ICA. Only frequent splits are reliable.
+	 */
+	public SplitCounts toSplitCounts() {
+		SplitCounts splitCounts = new SplitCounts();
+		splitCounts.addTreeCount(nTrees, idg);
+		for (int slot=0; slot<size; slot++) {
+			splitCounts.addCountedSplit(keys[slot], splits[slot], counts[slot]);
+		}
+		return splitCounts;
+	}
+
+	/**
+	 * Sum of RF distances to the majority rule tree (DC). Bounds allow for count errors of monitored
+	 * splits and for the total count of unmonitored ones (at most the sum of errors).
+	 */
+	public Estimate sumRFtoMajRuleTree() {
+		double value = 0, lower = 0, upper = 0;
+		long errorMass = 0;
+		for (int slot=0; slot<size; slot++) {
+			int high = counts[slot];
+			int low = high-errors[slot];
+			value += Math.min(high, nTrees-high);
+			// min(c, N-c) over c in [low,high] is smallest at an end of the range
+			lower += Math.min(Math.min(low, nTrees-low), Math.min(high, nTrees-high));
+			// and largest at N/2 if that is in range
+			int mid = nTrees/2;
+			int best = (low<=mid && mid<=high) ? Math.min(mid, nTrees-mid)
+					: Math.max(Math.min(low, nTrees-low), Math.min(high, nTrees-high));
+			upper += best;
+			errorMass += errors[slot];
+		}
+		return new Estimate(value, lower, upper+errorMass);
+	}
+
+	/**
+	 * Number of unique splits (US), from the HyperLogLog sketch. Bounds are two standard errors,
+	 * but never below the number of distinct splits monitored.
+	 */
+	public Estimate numUniqueSplits() {
+		if (!full()) {
+			// nothing has been evicted: the count is exact.
+			return new Estimate(size, size, size);
+		}
+		double estimate = hllEstimate();
+		double se = 1.04/Math.sqrt(registers.length);
+		double lower = Math.max(estimate*(1-2*se), capacity);
+		double upper = Math.max(estimate*(1+2*se), lower);
+		return new Estimate(Math.max(estimate, lower), lower, upper);
+	}
+
+	/**
+	 * Number of splits present in 'threshold' or fewer trees (the RS# statistic: HybridStats.getCumulativeSplitCount)
+	 * = US minus the number of splits present in more than 'threshold' trees.
+	 */
+	public Estimate rareSplits(int threshold) {
+		Estimate unique = numUniqueSplits();
+		int surelyFrequent = 0; // lower bound on number of splits with count > threshold
+		int maybeFrequent = 0;  // upper bound, if threshold >= min monitored count
+		for (int slot=0; slot<size; slot++) {
+			if (counts[slot]-errors[slot]>threshold) surelyFrequent++;
+			if (counts[slot]>threshold) maybeFrequent++;
+		}
+		double value = Math.max(0, unique.value-maybeFrequent);
+		double upper = Math.max(0, unique.upper-surelyFrequent);
+		double lower;
+		if (!full() || threshold>=minMonitoredCount()) {
+			// any unmonitored split has count <= the minimum monitored count, so isn't frequent
+			lower = Math.max(0, unique.lower-maybeFrequent);
+		} else {
+			lower = 0;
+		}
+		return new Estimate(Math.min(Math.max(value, lower), upper), lower, upper);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int numMonitoredSplits() {
+		return size;
+	}
+}
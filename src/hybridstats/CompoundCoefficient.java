@@ -26,6 +26,14 @@ public class CompoundCoefficient {
 		}
 	}
 	
+	double getCoefficient() {
+		return coefficient;
+	}
+	
+	String[] getVariables() {
+		return variables;
+	}
+	
 	public double evaluate(HybridStats stats) {
 		double result = coefficient;
 		for (String var : variables) {
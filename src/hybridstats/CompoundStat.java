@@ -25,6 +25,7 @@ public class CompoundStat {
 	 */
 	public CompoundStat(String name, double stdev) {
 		this.name = name;
+		this.error = stdev;
 		coefficients = new Vector<CompoundCoefficient>();
 	}
 	
@@ -65,6 +66,14 @@ public class CompoundStat {
 		return name;
 	}
 	
+	double getError() {
+		return error;
+	}
+	
+	Vector<CompoundCoefficient> getCoefficients() {
+		return coefficients;
+	}
+	
 	public void addCoefficient(String coefString) {
 		coefficients.add(new CompoundCoefficient(coefString));
 	}
@@ -0,0 +1,218 @@
+package hybridstats;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Opens input files which may be gzip compressed, recognised by their magic bytes (not by name),
+ * decompressing as the caller reads, without temporary files.
+ *
+ * Blocked gzip (BGZF, as written by bgzip) records the compressed size of each member in its
+ * header, so members can be read whole by one thread and inflated by a pool of others, and
+ * are passed on in order with a bounded number in flight. Other gzip (including multi-member)
+ * has no such index and is read with GZIPInputStream. Plain files are just buffered.
+ *
+ * @author woodhams
+ *
+ */
+public class CompressedInput {
+	private static final int BUFFER_SIZE = 1<<16;
+	private static final int GZIP_MAGIC_1 = 0x1f;
+	private static final int GZIP_MAGIC_2 = 0x8b;
+	private static final int FEXTRA = 4;
+	private static final int BGZF_HEADER_LENGTH = 18; // fixed header, XLEN, and the 'BC' subfield
+	private static final int BGZF_MAX_BLOCK = 1<<16; // most uncompressed bytes a BGZF member may hold
+
+	public static InputStream open(String filename) throws IOException {
+		return open(new FileInputStream(filename), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Wrap 'in' (which is closed when the result is) according to its content.
+	 * @param nThreads: number of threads inflating BGZF members
+	 */
+	public static InputStream open(InputStream in, int nThreads) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+		buffered.mark(BGZF_HEADER_LENGTH);
+		byte[] header = new byte[BGZF_HEADER_LENGTH];
+		int n = readFully(buffered, header, 0, header.length);
+		buffered.reset();
+		if (n<2 || (header[0]&0xff)!=GZIP_MAGIC_1 || (header[1]&0xff)!=GZIP_MAGIC_2) return buffered;
+		if (n==BGZF_HEADER_LENGTH && isBgzf(header) && nThreads>1) return new ParallelBgzfInputStream(buffered, nThreads);
+		return new GZIPInputStream(buffered, BUFFER_SIZE);
+	}
+
+	/*
+	 * Deflate, FEXTRA set, and the first extra subfield is 'BC' of length 2 (block size)
+	 */
+	private static boolean isBgzf(byte[] header) {
+		return header[2]==8 && (header[3]&FEXTRA)!=0
+				&& header[12]=='B' && header[13]=='C' && header[14]==2 && header[15]==0;
+	}
+
+	/*
+	 * Read until 'len' bytes or end of stream. Return number read.
+	 */
+	private static int readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+		int total = 0;
+		while (total<len) {
+			int n = in.read(buf, off+total, len-total);
+			if (n<0) break;
+			total += n;
+		}
+		return total;
+	}
+
+	private static int littleEndianShort(byte[] buf, int off) {
+		return (buf[off]&0xff) | (buf[off+1]&0xff)<<8;
+	}
+
+	private static int littleEndianInt(byte[] buf, int off) {
+		return littleEndianShort(buf, off) | littleEndianShort(buf, off+2)<<16;
+	}
+
+	/*
+	 * BGZF members are read (compressed) on the caller's thread, inflated on the pool,
+	 * and handed back in order. At most 'maxInFlight' are read ahead.
+	 */
+	private static class ParallelBgzfInputStream extends InputStream {
+		private final InputStream raw;
+		private final ExecutorService pool;
+		private final int maxInFlight;
+		private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+		private boolean rawFinished = false;
+		private byte[] current = new byte[0];
+		private int pos = 0;
+
+		ParallelBgzfInputStream(InputStream raw, int nThreads) {
+			this.raw = raw;
+			maxInFlight = 4*nThreads;
+			pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "bgzf-inflate");
+					thread.setDaemon(true); // don't hold up exit if the stream is never closed
+					return thread;
+				}
+			});
+		}
+
+		public int read() throws IOException {
+			if (pos==current.length && !nextBlock()) return -1;
+			return current[pos++]&0xff;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (len==0) return 0;
+			if (pos==current.length && !nextBlock()) return -1;
+			int n = Math.min(len, current.length-pos);
+			System.arraycopy(current, pos, buf, off, n);
+			pos += n;
+			return n;
+		}
+
+		public int available() {
+			return current.length-pos;
+		}
+
+		public void close() throws IOException {
+			pool.shutdownNow();
+			raw.close();
+		}
+
+		/*
+		 * Make the next non-empty inflated member current. False at end of input.
+		 */
+		private boolean nextBlock() throws IOException {
+			while (true) {
+				while (!rawFinished && inFlight.size()<maxInFlight) {
+					final byte[] member = readMember();
+					if (member==null) {
+						rawFinished = true;
+					} else {
+						inFlight.add(pool.submit(new Callable<byte[]>() {
+							public byte[] call() throws IOException {
+								return inflate(member);
+							}
+						}));
+					}
+				}
+				Future<byte[]> next = inFlight.poll();
+				if (next==null) return false;
+				try {
+					current = next.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted decompressing", e);
+				} catch (ExecutionException e) {
+					throw new IOException("Error decompressing", e.getCause());
+				}
+				pos = 0;
+				if (current.length>0) return true; // BGZF ends with an empty member
+			}
+		}
+
+		/*
+		 * One whole compressed member, or null at end of input.
+		 */
+		private byte[] readMember() throws IOException {
+			byte[] header = new byte[BGZF_HEADER_LENGTH];
+			int n = readFully(raw, header, 0, header.length);
+			if (n==0) return null;
+			if (n<header.length || (header[0]&0xff)!=GZIP_MAGIC_1 || (header[1]&0xff)!=GZIP_MAGIC_2 || !isBgzf(header)) {
+				throw new IOException("Not a BGZF member: input is not blocked gzip throughout");
+			}
+			int memberSize = littleEndianShort(header, 16)+1;
+			byte[] member = new byte[memberSize];
+			System.arraycopy(header, 0, member, 0, header.length);
+			if (readFully(raw, member, header.length, memberSize-header.length)<memberSize-header.length) {
+				throw new EOFException("Truncated BGZF member");
+			}
+			return member;
+		}
+
+		/*
+		 * Raw deflate data follows the extra field and precedes CRC32 and ISIZE.
+		 */
+		private static byte[] inflate(byte[] member) throws IOException {
+			int dataStart = 12+littleEndianShort(member, 10);
+			int trailer = member.length-8;
+			int size = littleEndianInt(member, trailer+4);
+			// don't let a corrupt ISIZE allocate gigabytes (or a negative size)
+			if (size<0 || size>BGZF_MAX_BLOCK) throw new IOException("Invalid BGZF member: uncompressed size "+size);
+			byte[] out = new byte[size];
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(member, dataStart, trailer-dataStart);
+				int n = 0;
+				while (n<out.length && !inflater.finished()) {
+					int m = inflater.inflate(out, n, out.length-n);
+					if (m==0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+					n += m;
+				}
+				if (n!=out.length) throw new IOException("BGZF member inflated to "+n+" bytes, expected "+out.length);
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt BGZF member", e);
+			} finally {
+				inflater.end();
+			}
+			CRC32 crc = new CRC32();
+			crc.update(out, 0, out.length);
+			if ((int)crc.getValue()!=littleEndianInt(member, trailer)) throw new IOException("BGZF member CRC mismatch");
+			return out;
+		}
+	}
+}
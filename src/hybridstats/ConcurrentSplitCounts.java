@@ -0,0 +1,156 @@
+package hybridstats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import pal.misc.IdGroup;
+import pal.tree.Tree;
+import palExtensions.IdGroupUtils;
+import palExtensions.NeoSplitSystem;
+import palExtensions.NeoSplitUtils;
+import palExtensions.Split;
+
+/**
+ * Split counting which many threads can add trees to at once, e.g. straight from parallel parsers.
+ *
+ * Each thread finds its tree's splits itself. Counts are kept in a ConcurrentHashMap from split
+ * hex string (as SplitCounts) to an atomic counter, so adding a split is a lookup and a
+ * compare-and-swap increment, with no global lock. Tree and split totals are atomic counters too.
+ *
+ * Statistics come from snapshot(), an ordinary SplitCounts, which should be taken once all
+ * addTree calls have returned: a snapshot taken during ingestion is not consistent across splits.
+ *
+ * @author woodhams
+ *
+ */
+public class ConcurrentSplitCounts {
+	private final ConcurrentHashMap<String,Counter> counts;
+	private final AtomicReference<IdGroup> idg;
+	private final AtomicInteger nTrees;
+	private final AtomicInteger nSplits;
+
+	private static class Counter {
+		final Split split;
+		final AtomicInteger count = new AtomicInteger();
+		Counter(Split split) {
+			this.split = split;
+		}
+	}
+
+	public ConcurrentSplitCounts() {
+		this(16, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param expectedSplits: initial table size
+	 * @param concurrencyLevel: expected number of threads adding trees
+	 */
+	public ConcurrentSplitCounts(int expectedSplits, int concurrencyLevel) {
+		counts = new ConcurrentHashMap<String,Counter>(expectedSplits, 0.75f, Math.max(1, concurrencyLevel));
+		idg = new AtomicReference<IdGroup>();
+		nTrees = new AtomicInteger();
+		nSplits = new AtomicInteger();
+	}
+
+	public void addTree(Tree tree) {
+		addTree(tree, 1);
+	}
+
+	/**
+	 * Add a tree which stands for 'weight' identical trees. Safe to call from any number of threads.
+	 */
+	public void addTree(Tree tree, int weight) {
+		if (weight<1) throw new IllegalArgumentException("Tree weight must be positive, got "+weight);
+		NeoSplitSystem splitSys = NeoSplitUtils.getSplits(tree);
+		IdGroup treeGroup = splitSys.getIdGroup();
+		if (!idg.compareAndSet(null, treeGroup) && !IdGroupUtils.equals(idg.get(), treeGroup)) {
+			throw new IllegalArgumentException("Tried to add split on different taxon set");
+		}
+		// count the tree before its splits, so a split's count never exceeds the tree count seen after it
+		nTrees.addAndGet(weight);
+		int n = 0;
+		for (Split split : splitSys) {
+			String hex = split.toHexString();
+			Counter counter = counts.get(hex);
+			if (counter==null) {
+				Counter newCounter = new Counter(split);
+				counter = counts.putIfAbsent(hex, newCounter);
+				if (counter==null) counter = newCounter;
+			}
+			counter.count.addAndGet(weight);
+			n++;
+		}
+		nSplits.addAndGet(n*weight);
+	}
+
+	/**
+	 * Add the trees of 'forest' using 'nThreads' threads.
+	 */
+	public void addForest(final Forest forest, int nThreads) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i=0; i<forest.size(); i++) {
+				final Tree tree = forest.get(i);
+				final int weight = forest.getWeight(i);
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						addTree(tree, weight);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures) future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted adding trees", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error adding trees", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The counts so far, as a SplitCounts for computing statistics.
+	 */
+	public SplitCounts snapshot() {
+		SplitCounts splitCounts = new SplitCounts();
+		if (idg.get()==null) return splitCounts;
+		// read split counts before the tree count (see addTree)
+		List<Entry<String,Counter>> entries = new ArrayList<Entry<String,Counter>>();
+		List<Integer> splitCountValues = new ArrayList<Integer>();
+		for (Entry<String,Counter> entry : counts.entrySet()) {
+			entries.add(entry);
+			splitCountValues.add(entry.getValue().count.get());
+		}
+		splitCounts.addTreeCount(nTrees.get(), idg.get());
+		for (int i=0; i<entries.size(); i++) {
+			if (splitCountValues.get(i)==0) continue; // counter created, not yet incremented
+			Entry<String,Counter> entry = entries.get(i);
+			splitCounts.addCountedSplit(entry.getKey(), entry.getValue().split, splitCountValues.get(i));
+		}
+		return splitCounts;
+	}
+
+	public int getNumberTrees() {
+		return nTrees.get();
+	}
+
+	public int totalNumberSplits() {
+		return nSplits.get();
+	}
+
+	public int numUniqueSplits() {
+		return counts.size();
+	}
+}
@@ -1,10 +1,11 @@
 package hybridstats;
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -25,6 +26,11 @@ import palExtensions.ExTreeUtils;
  * This is implemented as a wrapper around an ArrayList,
  * with the addition of some extra methods.
  * 
+ * Each tree may carry an integer weight (multiplicity), so that e.g. a posterior sample
+ * or a set of clustered gene trees need not hold repeated Tree objects. Statistics treat a tree
+ * of weight w exactly as w copies of that tree. Trees added without a weight have weight 1.
+ * Weights are not written by toTreesBlock.
+ * 
  * @author woodhams
  *
  */
@@ -33,9 +39,14 @@ import palExtensions.ExTreeUtils;
 public class Forest implements List<Tree>, RandomAccess, Cloneable, Serializable {
 	private static final long serialVersionUID = 1L;
 	private ArrayList<Tree> array;
+	private ArrayList<Integer> weights; // parallel to 'array'. Null if every tree has weight 1.
+	// Shared taxon set, and the number of leading trees known to have it. See getTaxa()
+	private transient TaxonDictionary taxa;
+	private transient int taxaChecked;
 	
 	public Forest() {
 		array = new ArrayList<Tree>();
+		weights = null;
 	}
 	
 	public Forest(Tree[] treeArray) {
@@ -63,17 +74,129 @@ public class Forest implements List<Tree>, RandomAccess, Cloneable, Serializable
 				throw e;
 			}
 		}
+		getTaxa();
 	}
 	
 	public Forest(String filename) throws IOException, TreeParseException {
 		this();
-        FileReader fileReader = new FileReader(filename);
-        BufferedReader bufferedReader = new BufferedReader(fileReader);
-        String line = null;
-        while ((line = bufferedReader.readLine()) != null) {
-            array.add(ExTreeUtils.robustStringToTree(line));
+        // plain or gzip compressed
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(CompressedInput.open(filename)));
+        try {
+            String line = null;
+            while ((line = bufferedReader.readLine()) != null) {
+                array.add(ExTreeUtils.robustStringToTree(line));
+            }
+        } finally {
+            bufferedReader.close();
         }
-        bufferedReader.close();
+        getTaxa();
+	}
+	
+	/**
+	 * Add a tree which stands for 'weight' identical trees.
+	 */
+	public boolean add(Tree tree, int weight) {
+		checkWeight(weight);
+		if (weights==null && weight!=1) makeWeighted();
+		if (weights!=null) weights.add(weight);
+		return array.add(tree);
+	}
+	
+	public int getWeight(int n) {
+		return (weights==null) ? 1 : weights.get(n);
+	}
+	
+	public void setWeight(int n, int weight) {
+		checkWeight(weight);
+		if (weights==null) {
+			if (weight==1) return;
+			makeWeighted();
+		}
+		weights.set(n, weight);
+	}
+	
+	public boolean isWeighted() {
+		return weights!=null;
+	}
+	
+	/**
+	 * @return sum of the tree weights: the number of trees this forest represents.
+	 */
+	public int totalWeight() {
+		if (weights==null) return array.size();
+		int total = 0;
+		for (int weight : weights) total += weight;
+		return total;
+	}
+	
+	/**
+	 * Returns a weighted forest with one tree per unique topology, weighted by multiplicity.
+	 * See TreeTopologyCounts.toWeightedForest()
+	 */
+	public Forest uniqueTopologies() {
+		return new TreeTopologyCounts(this).toWeightedForest();
+	}
+	
+	/**
+	 * The taxon set shared by every tree, or null if the trees' taxon sets differ (or there are no trees.)
+	 * Each tree's labels are checked once: the mutators forget only the trees from the first position
+	 * they change, so a call costs O(1) if nothing has changed, and O(k) after adding k trees at the end.
+	 * Synchronized, as it updates that cache and may be called from several threads (e.g. StatsScheduler.)
+	 */
+	public synchronized TaxonDictionary getTaxa() {
+		int n = array.size();
+		if (n==0) return null;
+		if (taxaChecked==0) {
+			taxa = new TaxonDictionary(array.get(0));
+			taxaChecked = 1;
+		}
+		while (taxaChecked<n) {
+			if (!taxa.sameTaxa(array.get(taxaChecked))) return null;
+			taxaChecked++;
+		}
+		return taxa;
+	}
+	
+	/*
+	 * Trees from position n on may have changed: getTaxa must check them again.
+	 */
+	private synchronized void uncheckTaxaFrom(int n) {
+		if (n<taxaChecked) taxaChecked = n;
+	}
+	
+	/*
+	 * Iterators over 'array' which can change it tell getTaxa.
+	 */
+	private ListIterator<Tree> uncheckingIterator(final ListIterator<Tree> iter) {
+		return new ListIterator<Tree>() {
+			public boolean hasNext() { return iter.hasNext(); }
+			public Tree next() { return iter.next(); }
+			public boolean hasPrevious() { return iter.hasPrevious(); }
+			public Tree previous() { return iter.previous(); }
+			public int nextIndex() { return iter.nextIndex(); }
+			public int previousIndex() { return iter.previousIndex(); }
+			public void remove() {
+				uncheckTaxaFrom(Math.max(0, iter.previousIndex()));
+				iter.remove();
+			}
+			public void set(Tree tree) {
+				uncheckTaxaFrom(Math.max(0, iter.previousIndex()));
+				iter.set(tree);
+			}
+			public void add(Tree tree) {
+				uncheckTaxaFrom(iter.nextIndex());
+				iter.add(tree);
+			}
+		};
+	}
+	
+	private void makeWeighted() {
+		weights = new ArrayList<Integer>(Math.max(10, array.size()));
+		for (int i=0; i<array.size(); i++) weights.add(1);
+	}
+	
+	private static void checkWeight(int weight) {
+		if (weight<1) throw new IllegalArgumentException("Tree weight must be positive, got "+weight);
 	}
 	
 	public TreesBlock toTreesBlock(String blockComment) {
@@ -86,20 +209,46 @@ public class Forest implements List<Tree>, RandomAccess, Cloneable, Serializable
 	}
 
 	/*
-	 * From here on, methods required by the interfaces, which just pass straight through to 'array'.
+	 * From here on, methods required by the interfaces, which just pass straight through to 'array'
+	 * (while keeping 'weights', if present, in step).
 	 */
 	@Override
-	public boolean add(Tree tree) { return array.add(tree); }
+	public boolean add(Tree tree) { 
+		if (weights!=null) weights.add(1);
+		return array.add(tree); 
+	}
 	@Override
-	public void add(int n, Tree tree) { array.add(n,tree); }
+	public void add(int n, Tree tree) { 
+		uncheckTaxaFrom(n);
+		array.add(n,tree); 
+		if (weights!=null) weights.add(n,1);
+	}
 	@Override
-	public boolean addAll(Collection<? extends Tree> treeCollection) { return array.addAll(treeCollection); }
+	public boolean addAll(Collection<? extends Tree> treeCollection) { 
+		return addAll(array.size(), treeCollection);
+	}
 	@Override
 	public boolean addAll(int n, Collection<? extends Tree> treeCollection) { 
+		uncheckTaxaFrom(n);
+		if (treeCollection instanceof Forest && ((Forest)treeCollection).isWeighted() && weights==null) makeWeighted();
+		if (weights!=null) {
+			ArrayList<Integer> newWeights = new ArrayList<Integer>(treeCollection.size());
+			if (treeCollection instanceof Forest) {
+				Forest other = (Forest)treeCollection;
+				for (int i=0; i<other.size(); i++) newWeights.add(other.getWeight(i));
+			} else {
+				for (int i=0; i<treeCollection.size(); i++) newWeights.add(1);
+			}
+			weights.addAll(n, newWeights);
+		}
 		return array.addAll(n,treeCollection);
 	}
 	@Override
-	public void clear() { array.clear(); }
+	public void clear() { 
+		uncheckTaxaFrom(0);
+		array.clear(); 
+		weights = null;
+	}
 	@Override
 	public boolean contains(Object tree) { return array.contains(tree); } 
 	@Override
@@ -110,28 +259,77 @@ public class Forest implements List<Tree>, RandomAccess, Cloneable, Serializable
 	public int indexOf(Object tree) { return array.indexOf(tree); }
 	@Override
 	public boolean isEmpty() { return array.isEmpty(); }
+	/*
+	 * For a weighted forest, the iterators can't be allowed to modify the list, 
+	 * as that would desynchronize the weights.
+	 */
 	@Override
-	public Iterator<Tree> iterator() { return array.iterator(); }
+	public Iterator<Tree> iterator() { 
+		return listIterator(0); 
+	}
 	@Override
 	public int lastIndexOf(Object tree) { return array.lastIndexOf(tree); }
 	@Override
-	public ListIterator<Tree> listIterator() { return array.listIterator(); }
+	public ListIterator<Tree> listIterator() { return listIterator(0); }
 	@Override
-	public ListIterator<Tree> listIterator(int n) { return array.listIterator(n); }
+	public ListIterator<Tree> listIterator(int n) { 
+		return (weights==null) ? uncheckingIterator(array.listIterator(n)) : Collections.unmodifiableList(array).listIterator(n); 
+	}
 	@Override
-	public boolean remove(Object tree) { return array.remove(tree); }
+	public boolean remove(Object tree) { 
+		int n = array.indexOf(tree);
+		if (n<0) return false;
+		remove(n);
+		return true;
+	}
 	@Override
-	public Tree remove(int n) { return array.remove(n); } 
+	public Tree remove(int n) { 
+		uncheckTaxaFrom(n);
+		if (weights!=null) weights.remove(n);
+		return array.remove(n); 
+	} 
 	@Override
-	public boolean removeAll(Collection<?> treeCollection) { return array.removeAll(treeCollection); }
+	public boolean removeAll(Collection<?> treeCollection) { 
+		if (weights==null) {
+			uncheckTaxaFrom(0);
+			return array.removeAll(treeCollection);
+		}
+		return retainOrRemove(treeCollection, false);
+	}
 	@Override
-	public boolean retainAll(Collection<?> treeCollection) { return array.retainAll(treeCollection); }
+	public boolean retainAll(Collection<?> treeCollection) { 
+		if (weights==null) {
+			uncheckTaxaFrom(0);
+			return array.retainAll(treeCollection);
+		}
+		return retainOrRemove(treeCollection, true);
+	}
+	private boolean retainOrRemove(Collection<?> treeCollection, boolean retain) {
+		boolean changed = false;
+		for (int i=array.size()-1; i>=0; i--) {
+			if (treeCollection.contains(array.get(i)) != retain) {
+				remove(i);
+				changed = true;
+			}
+		}
+		return changed;
+	}
 	@Override
-	public Tree set(int n, Tree tree) { return array.set(n, tree); }
+	public Tree set(int n, Tree tree) { // keeps the weight of position n
+		uncheckTaxaFrom(n);
+		return array.set(n, tree);
+	}
 	@Override
 	public int size() { return array.size(); }
+	/* Note: the sublist does not carry weights, and for a weighted forest is read only */
 	@Override
-	public List<Tree> subList(int from, int to) { return array.subList(from, to); }
+	public List<Tree> subList(int from, int to) { 
+		if (weights==null) {
+			uncheckTaxaFrom(from); // the sublist may be used to change the forest
+			return array.subList(from, to);
+		}
+		return Collections.unmodifiableList(array).subList(from, to); 
+	}
 	@Override
 	public Object[] toArray() { return array.toArray(); }
 	@Override
@@ -0,0 +1,308 @@
+package hybridstats;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import org.biojavax.bio.phylo.io.nexus.TreesBlock;
+
+import pal.tree.Node;
+import pal.tree.SimpleNode;
+import pal.tree.SimpleTree;
+import pal.tree.Tree;
+import palExtensions.ExtRandom;
+
+/**
+ * Deterministic source of synthetic forests, for benchmarking and load testing
+ * without needing HybridSim runs.
+ *
+ * A random rooted binary species tree is drawn once (Yule or coalescent), then each gene tree
+ * is a copy of it in which each leaf is, with probability 'discordance', pruned and regrafted
+ * onto a uniformly chosen branch. discordance=0 gives a forest of identical trees.
+ * All branch lengths are 1: only topologies are meaningful.
+ *
+ * Given the same seed, the same sequence of trees is produced.
+ *
+ * @author woodhams
+ *
+ */
+public class ForestGenerator {
+	/*
+	 * Note: Yule and coalescent processes give the same distribution over labelled topologies;
+	 * they differ in how the tree is built (splitting lineages top down vs. joining them bottom up),
+	 * so both are offered to match the simulations being imitated.
+	 */
+	public enum Model { YULE, COALESCENT }
+
+	private static final String TAXON_PREFIX = "t";
+	private final int nTaxa;
+	private final int nNodes;
+	private final double discordance;
+	private final ExtRandom rng;
+	private final String[] taxonNames;
+	/*
+	 * Trees are held as arrays: nodes 0..nTaxa-1 are leaves (node i is taxon i),
+	 * the rest are internal. -1 = no parent.
+	 */
+	private final int[] speciesParent, speciesLeft, speciesRight;
+	private int speciesRoot;
+	// working copy, overwritten for each gene tree
+	private final int[] parent, left, right;
+	private int root;
+	private int nGenerated;
+
+	public ForestGenerator(int nTaxa, Model model, double discordance, long seed) {
+		this(nTaxa, model, discordance, new ExtRandom(seed));
+	}
+
+	public ForestGenerator(int nTaxa, Model model, double discordance, ExtRandom rng) {
+		if (nTaxa<4) throw new IllegalArgumentException("Need at least 4 taxa, got "+nTaxa);
+		if (discordance<0 || discordance>1) throw new IllegalArgumentException("Discordance must be in [0,1], got "+discordance);
+		this.nTaxa = nTaxa;
+		this.nNodes = 2*nTaxa-1;
+		this.discordance = discordance;
+		this.rng = rng;
+		taxonNames = new String[nTaxa];
+		for (int i=0; i<nTaxa; i++) taxonNames[i] = TAXON_PREFIX+i;
+		speciesParent = new int[nNodes];
+		speciesLeft   = new int[nNodes];
+		speciesRight  = new int[nNodes];
+		parent = new int[nNodes];
+		left   = new int[nNodes];
+		right  = new int[nNodes];
+		switch (model) {
+			case YULE       : yuleSpeciesTree(); break;
+			case COALESCENT : coalescentSpeciesTree(); break;
+		}
+		nGenerated = 0;
+	}
+
+	/*
+	 * Grow top down: repeatedly pick an open lineage and split it, then put
+	 * the taxa on the open lineages in random order.
+	 */
+	private void yuleSpeciesTree() {
+		int[] openParent = new int[nTaxa];
+		boolean[] openIsLeft = new boolean[nTaxa];
+		int nextInternal = nTaxa;
+		speciesRoot = nextInternal++;
+		speciesParent[speciesRoot] = -1;
+		openParent[0] = speciesRoot; openIsLeft[0] = true;
+		openParent[1] = speciesRoot; openIsLeft[1] = false;
+		int nOpen = 2;
+		while (nOpen<nTaxa) {
+			int i = rng.nextInt(nOpen);
+			int node = nextInternal++;
+			attach(speciesLeft, speciesRight, speciesParent, openParent[i], openIsLeft[i], node);
+			openParent[i] = node;     openIsLeft[i] = true;
+			openParent[nOpen] = node; openIsLeft[nOpen] = false;
+			nOpen++;
+		}
+		int[] order = randomPermutation(nTaxa);
+		for (int i=0; i<nTaxa; i++) {
+			attach(speciesLeft, speciesRight, speciesParent, openParent[i], openIsLeft[i], order[i]);
+		}
+	}
+
+	/*
+	 * Build bottom up: repeatedly join two random lineages.
+	 */
+	private void coalescentSpeciesTree() {
+		int[] active = new int[nTaxa];
+		for (int i=0; i<nTaxa; i++) active[i] = i;
+		int nActive = nTaxa;
+		int nextInternal = nTaxa;
+		while (nActive>1) {
+			int i = rng.nextInt(nActive);
+			int j = rng.nextInt(nActive-1);
+			if (j>=i) j++;
+			int node = nextInternal++;
+			attach(speciesLeft, speciesRight, speciesParent, node, true,  active[i]);
+			attach(speciesLeft, speciesRight, speciesParent, node, false, active[j]);
+			// replace i by the new node, fill j's slot from the end
+			active[i] = node;
+			active[j] = active[--nActive];
+		}
+		speciesRoot = active[0];
+		speciesParent[speciesRoot] = -1;
+	}
+
+	private static void attach(int[] left, int[] right, int[] parent, int at, boolean asLeft, int child) {
+		if (asLeft) left[at] = child; else right[at] = child;
+		parent[child] = at;
+	}
+
+	private int[] randomPermutation(int n) {
+		int[] perm = new int[n];
+		for (int i=0; i<n; i++) perm[i] = i;
+		for (int i=n-1; i>0; i--) {
+			int j = rng.nextInt(i+1);
+			int temp = perm[i]; perm[i] = perm[j]; perm[j] = temp;
+		}
+		return perm;
+	}
+
+	/*
+	 * Copy the species tree into the working arrays, then perturb it.
+	 */
+	private void nextGeneTree() {
+		System.arraycopy(speciesParent, 0, parent, 0, nNodes);
+		System.arraycopy(speciesLeft,   0, left,   0, nNodes);
+		System.arraycopy(speciesRight,  0, right,  0, nNodes);
+		root = speciesRoot;
+		if (discordance>0) {
+			for (int leaf=0; leaf<nTaxa; leaf++) {
+				if (rng.nextDouble()<discordance) pruneAndRegraft(leaf);
+			}
+		}
+		nGenerated++;
+	}
+
+	/*
+	 * Remove 'leaf' and its parent node p, joining p's other child to p's parent,
+	 * then reuse p to insert the leaf on the branch above a random node.
+	 */
+	private void pruneAndRegraft(int leaf) {
+		int p = parent[leaf];
+		int sibling = (left[p]==leaf) ? right[p] : left[p];
+		replaceChild(parent[p], p, sibling);
+		int target;
+		do {
+			target = rng.nextInt(nNodes);
+		} while (target==leaf || target==p);
+		replaceChild(parent[target], target, p);
+		left[p] = target;
+		right[p] = leaf;
+		parent[target] = p;
+		parent[leaf] = p;
+	}
+
+	// In grandparent 'g' (-1 for root) replace child 'oldChild' by 'newChild'
+	private void replaceChild(int g, int oldChild, int newChild) {
+		parent[newChild] = g;
+		if (g<0) {
+			root = newChild;
+		} else if (left[g]==oldChild) {
+			left[g] = newChild;
+		} else {
+			right[g] = newChild;
+		}
+	}
+
+	/**
+	 * Generate the next gene tree.
+	 */
+	public Tree nextTree() {
+		nextGeneTree();
+		return new SimpleTree(toNode(root));
+	}
+
+	/**
+	 * Generate the next gene tree, as a Newick string (with trailing ';')
+	 */
+	public String nextNewick() {
+		nextGeneTree();
+		StringBuilder buf = new StringBuilder(nTaxa*8);
+		appendNewick(buf, root);
+		buf.append(';');
+		return buf.toString();
+	}
+
+	private Node toNode(int node) {
+		if (node<nTaxa) return new SimpleNode(taxonNames[node], 1);
+		Node internal = new SimpleNode();
+		internal.addChild(toNode(left[node]));
+		internal.addChild(toNode(right[node]));
+		if (node!=root) internal.setBranchLength(1);
+		return internal;
+	}
+
+	private void appendNewick(StringBuilder buf, int node) {
+		if (node<nTaxa) {
+			buf.append(taxonNames[node]);
+		} else {
+			buf.append('(');
+			appendNewick(buf, left[node]);
+			buf.append(',');
+			appendNewick(buf, right[node]);
+			buf.append(')');
+		}
+		if (node!=root) buf.append(":1");
+	}
+
+	/**
+	 * Generate nTrees trees into a Forest. For very large forests, use the write methods instead.
+	 */
+	public Forest generateForest(int nTrees) {
+		Forest forest = new Forest();
+		for (int i=0; i<nTrees; i++) forest.add(nextTree());
+		return forest;
+	}
+
+	/**
+	 * Generate nTrees trees into a Nexus trees block (via Forest.toTreesBlock)
+	 */
+	public TreesBlock generateTreesBlock(int nTrees, String blockComment) {
+		return generateForest(nTrees).toTreesBlock(blockComment);
+	}
+
+	/**
+	 * Write nTrees trees, one Newick string per line (the format read by Forest(String)).
+	 * Only one tree is held in memory at a time.
+	 */
+	public void writeNewick(Writer out, int nTrees) throws IOException {
+		for (int i=0; i<nTrees; i++) {
+			out.write(nextNewick());
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write a Nexus file with a single trees block of nTrees trees, readable by Main.readTreesFromFile.
+	 * The block is written directly rather than via a TreesBlock, so only one tree is held in memory
+	 * at a time.
+	 * @param blockComment: if not null, written as the block's first comment, e.g.
+	 * "Randomly selected coalescent trees" (see Main.COALESCENT_TREES)
+	 */
+	public void writeNexus(Writer out, int nTrees, String blockComment) throws IOException {
+		out.write("#NEXUS\n\nBEGIN TREES;\n");
+		if (blockComment!=null) out.write("["+blockComment+"]\n");
+		for (int i=0; i<nTrees; i++) {
+			out.write("TREE T"+i+" = ");
+			out.write(nextNewick());
+			out.write('\n');
+		}
+		out.write("END;\n");
+		out.flush();
+	}
+
+	public int getNumberTaxa() { return nTaxa; }
+	public int getNumberGenerated() { return nGenerated; }
+
+	/**
+	 * Command line: nTaxa nTrees discordance seed yule|coalescent newick|nexus outfile
+	 * The Nexus trees block comment names the model: "Randomly selected yule trees" or
+	 * "Randomly selected coalescent trees" (pick it with Main's -t option.)
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length!=7) {
+			System.err.println("Usage: ForestGenerator nTaxa nTrees discordance seed yule|coalescent newick|nexus outfile");
+			System.exit(1);
+		}
+		int nTaxa = Integer.valueOf(args[0]);
+		int nTrees = Integer.valueOf(args[1]);
+		double discordance = Double.valueOf(args[2]);
+		long seed = Long.valueOf(args[3]);
+		Model model = Model.valueOf(args[4].toUpperCase());
+		ForestGenerator generator = new ForestGenerator(nTaxa, model, discordance, seed);
+		PrintWriter out = new PrintWriter(new FileWriter(args[6]));
+		if (args[5].equalsIgnoreCase("nexus")) {
+			generator.writeNexus(out, nTrees, "Randomly selected "+model.name().toLowerCase()+" trees (ForestGenerator)");
+		} else {
+			generator.writeNewick(out, nTrees);
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,241 @@
+package hybridstats;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import palExtensions.ExTreeUtils;
+import palExtensions.ExtRandom;
+import palExtensions.NeoSplitUtils;
+import palExtensions.Split;
+
+/**
+ * Distribution of the greedy consensus tree, TC and TCA over random resolutions of ties
+ * between equally frequent splits.
+ *
+ * SplitCounts.greedyConsensusTree(true) resolves ties by a random shuffle, and TC/TCA depend
+ * on the result. Here each replicate does the same (shuffle with its own ExtRandom, seeded seed+r for
+ * replicate r, then stable sort by decreasing count) and finds the greedy splits and their IC/ICA.
+ * The split table is built once and shared (read only) by replicates running in parallel.
+ *
+ * Only the conflicts of greedy splits are ever needed (with candidates, and with later splits for IC/ICA),
+ * so rather than an nSplits^2 compatibility matrix, a split's row of conflicts (nSplits bits) is found
+ * the first time it is chosen as a greedy split, and shared by later replicates. Memory is nSplits/8
+ * bytes per distinct greedy split, at most (nTaxa-3) per distinct greedy consensus tree.
+ *
+ * @author woodhams
+ *
+ */
+public class GreedyConsensusEnsemble {
+	private final int nSplits;
+	private final Split[] splits;
+	private final int[] counts;
+	private final int nGreedy; // number of splits in a fully resolved tree
+	private final int words;
+	private final AtomicReferenceArray<long[]> conflictRows; // bit j of row i set iff splits i and j conflict. Null until needed.
+
+	/**
+	 * Summary of an ensemble of replicates
+	 */
+	public static class Result {
+		public final int replicates;
+		public final double meanTC, varianceTC;
+		public final double meanTCA, varianceTCA;
+		// greedy consensus topology (ExTreeUtils.toTopologyString) -> number of replicates, most frequent first
+		public final LinkedHashMap<String,Integer> topologyCounts;
+
+		Result(int replicates, double[] tc, double[] tca, LinkedHashMap<String,Integer> topologyCounts) {
+			this.replicates = replicates;
+			meanTC = mean(tc);
+			varianceTC = variance(tc, meanTC);
+			meanTCA = mean(tca);
+			varianceTCA = variance(tca, meanTCA);
+			this.topologyCounts = topologyCounts;
+		}
+	}
+
+	public GreedyConsensusEnsemble(SplitCounts splitCounts) {
+		String[] hexArray = splitCounts.getHexArray();
+		nSplits = hexArray.length;
+		splits = new Split[nSplits];
+		counts = new int[nSplits];
+		for (int i=0; i<nSplits; i++) {
+			splits[i] = splitCounts.getSplit(hexArray[i]);
+			counts[i] = splitCounts.getCount(hexArray[i]);
+		}
+		nGreedy = splitCounts.getIdCount()-3;
+		words = (nSplits+63) >>> 6;
+		conflictRows = new AtomicReferenceArray<long[]>(nSplits);
+	}
+
+	/*
+	 * Conflicts of split i, found on first request. Replicates may race to find a row: they get the same answer.
+	 */
+	private long[] conflictRow(int i) {
+		long[] row = conflictRows.get(i);
+		if (row==null) {
+			row = new long[words];
+			for (int j=0; j<nSplits; j++) {
+				if (j!=i && !splits[i].compatible(splits[j])) row[j>>>6] |= 1L<<(j & 63);
+			}
+			if (!conflictRows.compareAndSet(i, null, row)) row = conflictRows.get(i);
+		}
+		return row;
+	}
+
+	private static boolean conflict(long[] row, int j) {
+		return (row[j>>>6] & (1L<<(j & 63)))!=0;
+	}
+
+	/**
+	 * Run 'replicates' tie break replicates, replicate r seeded with seed+r.
+	 */
+	public Result run(int replicates, final long seed, int nThreads) {
+		if (replicates<1) throw new IllegalArgumentException("Need at least one replicate");
+		double[] tc = new double[replicates];
+		double[] tca = new double[replicates];
+		List<int[]> greedySets = new ArrayList<int[]>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+		try {
+			List<Future<Replicate>> futures = new ArrayList<Future<Replicate>>();
+			for (int r=0; r<replicates; r++) {
+				final long replicateSeed = seed+r;
+				futures.add(pool.submit(new Callable<Replicate>() {
+					public Replicate call() {
+						return replicate(new ExtRandom(replicateSeed));
+					}
+				}));
+			}
+			for (int r=0; r<replicates; r++) {
+				Replicate rep = futures.get(r).get();
+				tc[r] = rep.tc;
+				tca[r] = rep.tca;
+				greedySets.add(rep.greedy);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted in greedy consensus ensemble", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error in greedy consensus ensemble", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return new Result(replicates, tc, tca, topologyCounts(greedySets));
+	}
+
+	private static class Replicate {
+		double tc, tca;
+		int[] greedy; // sorted split indices
+	}
+
+	private Replicate replicate(ExtRandom rng) {
+		// as SplitCounts.resortSplits
+		List<Integer> order = new ArrayList<Integer>(nSplits);
+		for (int i=0; i<nSplits; i++) order.add(i);
+		rng.shuffle(order);
+		Collections.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return counts[b]-counts[a];
+			}
+		});
+		// as SplitCounts.findGreedySplits
+		int[] greedy = new int[nGreedy];
+		long[][] greedyRows = new long[nGreedy][];
+		int[] greedyPosition = new int[nGreedy];
+		int nFound = 0;
+		for (int pos=0; pos<nSplits && nFound<nGreedy; pos++) {
+			int candidate = order.get(pos);
+			boolean ok = true;
+			for (int g=0; g<nFound && ok; g++) ok = !conflict(greedyRows[g], candidate);
+			if (ok) {
+				greedyPosition[nFound] = pos;
+				greedyRows[nFound] = conflictRow(candidate);
+				greedy[nFound++] = candidate;
+			}
+		}
+		// IC (strongest later conflicting split) and ICA (all later conflicting splits) of each greedy split
+		Replicate result = new Replicate();
+		for (int g=0; g<nFound; g++) {
+			int split = greedy[g];
+			int n = 1;
+			double sum = counts[split];
+			double sumCLogC = counts[split]*Math.log(counts[split]);
+			double ic = 1;
+			for (int pos=greedyPosition[g]+1; pos<nSplits; pos++) {
+				int other = order.get(pos);
+				if (!conflict(greedyRows[g], other)) continue;
+				int c = counts[other];
+				if (n==1) ic = SplitCounts.internodeCertainty(2, sum+c, sumCLogC+c*Math.log(c));
+				n++;
+				sum += c;
+				sumCLogC += c*Math.log(c);
+			}
+			result.tc += ic;
+			result.tca += SplitCounts.internodeCertainty(n, sum, sumCLogC);
+		}
+		result.greedy = Arrays.copyOf(greedy, nFound);
+		Arrays.sort(result.greedy);
+		return result;
+	}
+
+	/*
+	 * Tally greedy split sets, then turn each distinct one into a topology string.
+	 */
+	private LinkedHashMap<String,Integer> topologyCounts(List<int[]> greedySets) {
+		final LinkedHashMap<String,Integer> bySet = new LinkedHashMap<String,Integer>();
+		LinkedHashMap<String,int[]> sets = new LinkedHashMap<String,int[]>();
+		for (int[] set : greedySets) {
+			String key = Arrays.toString(set);
+			Integer count = bySet.get(key);
+			bySet.put(key, (count==null) ? 1 : count+1);
+			sets.put(key, set);
+		}
+		List<String> keys = new ArrayList<String>(bySet.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return bySet.get(b)-bySet.get(a);
+			}
+		});
+		LinkedHashMap<String,Integer> result = new LinkedHashMap<String,Integer>();
+		for (String key : keys) {
+			List<Split> treeSplits = new ArrayList<Split>();
+			for (int split : sets.get(key)) treeSplits.add(splits[split]);
+			result.put(ExTreeUtils.toTopologyString(NeoSplitUtils.treeFromSplits(treeSplits)), bySet.get(key));
+		}
+		return result;
+	}
+
+	private static double mean(double[] x) {
+		double sum = 0;
+		for (double v : x) sum += v;
+		return sum/x.length;
+	}
+
+	// sample variance
+	private static double variance(double[] x, double mean) {
+		if (x.length<2) return 0;
+		double sum = 0;
+		for (double v : x) sum += (v-mean)*(v-mean);
+		return sum/(x.length-1);
+	}
+
+	public static void printSummary(PrintWriter out, Result result) {
+		out.printf("Greedy consensus ensemble of %d tie break replicates\n", result.replicates);
+		out.printf("TC  mean %f variance %f\n", result.meanTC, result.varianceTC);
+		out.printf("TCA mean %f variance %f\n", result.meanTCA, result.varianceTCA);
+		for (Entry<String,Integer> entry : result.topologyCounts.entrySet()) {
+			out.printf("%d\t%s\n", entry.getValue(), entry.getKey());
+		}
+	}
+}
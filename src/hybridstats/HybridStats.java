@@ -1,12 +1,17 @@
 package hybridstats;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
 
 import pal.tree.Tree;
+import palExtensions.ExtRandom;
 
-// TODO: The two letter abbreviations have become important and should be better integrated 
-// with the code (e.g. defined all in one place in an array or static final definitions) 
+// The two letter abbreviations, and the statistics they name, are defined in one place: StatisticRegistry.
+// HybridStats calculates and reports every statistic registered there as a column.
 
 // 2015-06-02 renamed "TS" (total splits) to "US" (unique splits) for consistency with "UC" (unique cherries)
 // (which used to be "TC" until TreeCertainty got added.)
@@ -14,77 +19,164 @@ public class HybridStats {
 	private int nTrees;
 	private int nTaxa;
 	int nSplits; // total number of splits. I.e. nTrees*(nTaxa-3) if all trees are fully resolved
-	private double topoEntropy; // S1, "TE"
 	private int[] cumTopoCounts; // can generate S2, S3 
-	private int splitIncompat; // S4, "SI"
-	private int[] reducedSplitIncompat; // S7, "SI-#"
-	private int consensusDist; // S5, "DC"
-	private int nCherries; // S9, "UC"
-	private int splitsObs; // S10, "US"
-	private double quartetEnt; // S11, "QE"
+	private HashMap<String,Double> columnValues; // StatisticRegistry column statistics, e.g. "TE", "SI", "QE"
+	private int[] reducedSplitIncompat; // S7, "SI-#", NOT_COMPUTED for thresholds not asked for, TIMED_OUT if no time
 	private int[] cumulativeSplitCountByFreq; // can generate S12, "RS#"
-	private double treeCertainty; // "TC"
-	private double treeCertaintyAll; // "TCA"
 	private SplitCounts splitCounts;
+	private StatsContext context; // shared structures the statistics are computed from
+	private PhaseMetrics metrics;
+	private static final int NOT_COMPUTED = -1;
+	private static final int TIMED_OUT = -2;
+	// columns with their own line (with more detail) in printHumanFriendly
+	private static final List<String> DESCRIBED = Arrays.asList("TE", "SI", "DC", "UC", "US", "QE", "TC", "TCA");
 	
 	public HybridStats(Tree[] trees) {
 		this(new Forest(trees));
 	}
 	
 	public HybridStats(Forest forest) {
-		nTrees = forest.size();
+		this(forest, PhaseMetrics.DISABLED);
+	}
+	
+	/**
+	 * @param metrics: records time and allocation of each phase of the calculation.
+	 * Use PhaseMetrics.DISABLED if not wanted.
+	 */
+	public HybridStats(Forest forest, PhaseMetrics metrics) {
+		this(forest, (int[])null, 0, metrics);
+	}
+	
+	/**
+	 * @param siThresholds: the SI-# thresholds to calculate (e.g. SummaryStatParameters.requiredSIThresholds()),
+	 * or null for all of them. Others are calculated on demand if asked for.
+	 * @param metrics: as above
+	 */
+	public HybridStats(Forest forest, int[] siThresholds, PhaseMetrics metrics) {
+		this(forest, siThresholds, 0, metrics);
+	}
+	
+	/**
+	 * Thresholds and time budget from 'params'
+	 */
+	public HybridStats(Forest forest, SummaryStatParameters params, PhaseMetrics metrics) {
+		this(forest, params, null, metrics);
+	}
+	
+	/**
+	 * @param rng: resolves ties in the greedy consensus tree (so TC, TCA.) Give each forest its own,
+	 * seeded, when HybridStats are built concurrently, so results don't depend on thread scheduling.
+	 * Null for the shared default (see SplitCounts.setRNG).
+	 */
+	public HybridStats(Forest forest, SummaryStatParameters params, ExtRandom rng, PhaseMetrics metrics) {
+		this(forest, params.requiredSIThresholds(), params.timeBudgetMillis, rng, metrics);
+	}
+	
+	/**
+	 * @param timeBudgetMillis: time allowed for this forest, or 0 for no limit. The CHEAP column statistics
+	 * (TE, DC, UC, US: see StatisticRegistry.Cost) and RS# are always calculated, first. Once the budget
+	 * is spent, the remaining statistics (including SI) are skipped (NaN from getStatByName), except that
+	 * QE and RT are estimated from the most frequent topologies counted so far (NaN if none.)
+	 * See getDegraded(): printRFriendly prints NA for all of these.
+	 */
+	public HybridStats(Forest forest, int[] siThresholds, long timeBudgetMillis, PhaseMetrics metrics) {
+		this(forest, siThresholds, timeBudgetMillis, null, metrics);
+	}
+	
+	/**
+	 * @param rng: as above
+	 */
+	public HybridStats(Forest forest, int[] siThresholds, long timeBudgetMillis, ExtRandom rng, PhaseMetrics metrics) {
+		this.metrics = metrics;
+		long start = System.nanoTime();
+		nTrees = forest.totalWeight(); // a tree of weight w counts as w trees throughout
 		nTaxa = forest.get(0).getIdCount();
-		splitCounts = new SplitCounts(forest);		
-		nSplits=splitCounts.totalNumberSplits();
+		metrics.start("topologyCounts");
 		TreeTopologyCounts topoCounts = new TreeTopologyCounts(forest); 
-		topoEntropy=entropy(topoCounts.getCounts());
 		cumTopoCounts = topoCounts.cumulativeCounts();
-		splitIncompat = splitCounts.weightedPairwiseSplitIncompatibility();
+		/*
+		 * From here on, work once per unique topology (weighted by multiplicity) rather than once per tree.
+		 * Splits are first seen in the same order as in 'forest', so results (including random
+		 * tie breaks in the greedy consensus) are unchanged.
+		 */
+		Forest uniqueForest = topoCounts.toWeightedForest();
+		metrics.start("splitCounts");
+		splitCounts = new SplitCounts(uniqueForest);		
+		if (rng!=null) splitCounts.setRNG(rng);
+		nSplits=splitCounts.totalNumberSplits();
+		context = new StatsContext(forest, topoCounts, uniqueForest, splitCounts);
+		if (timeBudgetMillis>0) context.setDeadline(start+timeBudgetMillis*1000000L);
+		metrics.start("RS#");
+		cumulativeSplitCountByFreq = context.getCumulativeSplitCounts();
+		// Cheap statistics, then the others in order of cost while time allows. Each cost runs in parallel.
+		columnValues = new HashMap<String,Double>();
+		List<StatisticRegistry.Column> columns = StatisticRegistry.getColumns();
+		computeColumns(columns, StatisticRegistry.Cost.CHEAP);
+		computeColumns(columns, StatisticRegistry.Cost.MODERATE);
+		metrics.start("SI-#");
 		int nThreshold = nTrees/2;
 		reducedSplitIncompat = new int[nThreshold];
-		for (int i=0; i<nThreshold; i++) {
-			reducedSplitIncompat[i] = splitCounts.weightedPairwiseSplitIncompatibility(i);
+		Arrays.fill(reducedSplitIncompat, NOT_COMPUTED);
+		if (siThresholds==null) {
+			siThresholds = new int[nThreshold];
+			for (int i=0; i<nThreshold; i++) siThresholds[i] = i;
 		}
-		consensusDist = splitCounts.sumRFtoMajRuleTree();
-		nCherries = splitCounts.numUniqueCherries();
-		splitsObs = splitCounts.numUniqueSplits();
-		treeCertainty = splitCounts.treeCertainty();
-		treeCertaintyAll = splitCounts.treeCertaintyAll(0); // Possible TODO: use a suitable threshold instead of 0.
-		quartetEnt = QuartetEntropy.entropy(forest);
-		int[] splitCountByFreq = splitCounts.countByFrequency();
-		cumulativeSplitCountByFreq = new int[splitCountByFreq.length];
-		cumulativeSplitCountByFreq[0]=0;
-		for (int i=1; i<splitCountByFreq.length; i++) {
-			cumulativeSplitCountByFreq[i] = cumulativeSplitCountByFreq[i-1] + splitCountByFreq[i-1];
+		for (int t : siThresholds) {
+			if (t<0 || t>=nThreshold) continue;
+			if (context.outOfTime()) {
+				reducedSplitIncompat[t] = TIMED_OUT;
+				context.markDegraded("SI-#");
+			} else {
+				reducedSplitIncompat[t] = splitCounts.weightedPairwiseSplitIncompatibility(t);
+			}
 		}
+		computeColumns(columns, StatisticRegistry.Cost.EXPENSIVE);
+		metrics.stop();
+		metrics.count("trees", nTrees);
+		metrics.count("taxa", nTaxa);
+		metrics.count("totalSplits", nSplits);
+		metrics.count("uniqueSplits", splitCounts.numUniqueSplits());
+		metrics.count("uniqueTopologies", topoCounts.getNumberUniqueTopologies());
+		metrics.count("quadruples", (long)nTaxa*(nTaxa-1)*(nTaxa-2)*(nTaxa-3)/24);
+		metrics.count("triples", TripletCounts.numberOfTriples(nTaxa));
+		metrics.count("degraded", context.getDegraded().size());
 	}
 	
-	public double getStatByName(String statName) {
-		switch (statName) {
-			case "1"  : return 1; // allows constant (intercept) term
-			case "TE" : return topoEntropy;
-			case "SI" : return splitIncompat;
-			case "DC" : return consensusDist;
-			case "UC" : return nCherries;
-			case "US" : return splitsObs;
-			case "QE" : return quartetEnt;
-			case "TC" : return treeCertainty;
-			case "TCA": return treeCertaintyAll;
-			default : break;
+	/*
+	 * The columns of this cost, in parallel on the shared StatsScheduler, as one metrics phase
+	 * (whose CPU time and allocation are only those of this thread.) CHEAP ones ignore the deadline.
+	 */
+	private void computeColumns(List<StatisticRegistry.Column> columns, StatisticRegistry.Cost cost) {
+		List<String> names = new ArrayList<String>();
+		for (StatisticRegistry.Column column : columns) {
+			if (column.cost==cost) names.add(column.getName());
 		}
-		// Only legitimate statNames left are "RS<int>" and "SI-<int>"
-		if (statName.startsWith("RS")) {
+		if (names.isEmpty()) return;
+		metrics.start(cost.name().toLowerCase()+"Stats");
+		columnValues.putAll(StatsScheduler.getShared().compute(context, names, cost!=StatisticRegistry.Cost.CHEAP));
+	}
+	
+	public double getStatByName(String statName) {
+		if (statName.equals("1")) return 1; // allows constant (intercept) term
+		Double value = columnValues.get(statName);
+		if (value!=null) return value;
+		if (statName.matches("RS\\d+")) {
 			int index = Integer.valueOf(statName.substring(2));
 			return cumulativeSplitCountByFreq[index];
-		} else if (statName.startsWith("SI-")) {
+		} else if (statName.matches("SI-\\d+")) {
 			int index = Integer.valueOf(statName.substring(3));
-			return reducedSplitIncompat[index];
-		} else throw new IllegalArgumentException("Unrecognized stat name '"+statName+"'");
+			if (index<reducedSplitIncompat.length && reducedSplitIncompat[index]==TIMED_OUT) return Double.NaN;
+			return getReducedSplitIncompatibility(index);
+		}
+		// other registered statistics, computed on demand from the shared structures
+		Statistic stat = StatisticRegistry.lookup(statName);
+		if (stat==null) throw new IllegalArgumentException("Unrecognized stat name '"+statName+"'");
+		return stat.compute(context);
 	}
 	
 	public void printHumanFriendly(PrintWriter out) {
 		double maxTopoEntropy = nTrees * Math.log(nTrees);
-		out.printf("(S1) Topology entropy = %f (max possible=%f)\n", topoEntropy, maxTopoEntropy);
+		out.printf("(S1) Topology entropy = %f (max possible=%f)\n", getStatByName("TE"), maxTopoEntropy);
 		out.printf("(S2, S3) Cumulative counts of topologies: [%d", cumTopoCounts[0]);
 		int i;
 		for (i=1; i<cumTopoCounts.length && cumTopoCounts[i]-cumTopoCounts[i-1]>1; i++) {
@@ -95,20 +187,26 @@ public class HybridStats {
 		}
 		out.print("]\n");
 		//out.printf("(S2, S3) Cumulative counts of topologies: %s\n", Arrays.toString(cumTopoCounts));
-		out.printf("(S4) Total pairwise split incompatibility = %d\n", splitIncompat);		
-		out.printf("(S5) Sum diff Robinson Foulds distance to majority rule tree = %d (max possible = %d)\n", 
-				consensusDist, (nTaxa-3)*nTrees);
-		out.printf("(S9) Number of unique cherries = %d (max possible = %d)\n", nCherries, nTaxa*(nTaxa-1)/2);
-		out.printf("(S10) Number of unique non-trivial splits observed = %d (c.f. %d for a single fully resolved tree, max %.0f)\n", 
-				splitsObs, nTaxa-3, Math.min((nTaxa-3)*nTrees,Math.pow(2, nTaxa-1)-nTaxa-1));
-		out.printf("(S11) Quartet entropy = %f\n", quartetEnt);
+		out.printf("(S4) Total pairwise split incompatibility = %.0f\n", getStatByName("SI"));		
+		out.printf("(S5) Sum diff Robinson Foulds distance to majority rule tree = %.0f (max possible = %d)\n", 
+				getStatByName("DC"), (nTaxa-3)*nTrees);
+		out.printf("(S9) Number of unique cherries = %.0f (max possible = %d)\n", getStatByName("UC"), nTaxa*(nTaxa-1)/2);
+		out.printf("(S10) Number of unique non-trivial splits observed = %.0f (c.f. %d for a single fully resolved tree, max %.0f)\n", 
+				getStatByName("US"), nTaxa-3, Math.min((nTaxa-3)*nTrees,Math.pow(2, nTaxa-1)-nTaxa-1));
+		out.printf("(S11) Quartet entropy = %f\n", getStatByName("QE"));
 		int nPairs = nSplits*(nSplits-1)/2; // Number of pairwise split comparisons
 		out.printf("(S12) Cumulative number of splits with a given frequency = %s\n", Arrays.toString(cumulativeSplitCountByFreq));
-		out.printf("Tree certainty = %f\n", treeCertainty);
-		out.printf("Tree certainty all = %f\n", treeCertaintyAll);
+		out.printf("Tree certainty = %f\n", getStatByName("TC"));
+		out.printf("Tree certainty all = %f\n", getStatByName("TCA"));
+		for (StatisticRegistry.Column column : StatisticRegistry.getColumns()) {
+			if (DESCRIBED.contains(column.getName())) continue;
+			out.printf("%s = %f\n", column.description, getStatByName(column.getName()));
+		}
+		if (!getDegraded().isEmpty()) out.printf("Cut short by time budget: %s\n", getDegraded());
 		out.print("(S7) Split incompatibilities beyond threshold:\nThresh.   Pairwise incompat.\n");
 		int reduced=1;
 		for (int threshold=0; threshold<nTrees/2 && reduced>0; threshold++) {
+			if (reducedSplitIncompat[threshold]<0) continue; // not computed
 			reduced = reducedSplitIncompat[threshold];
 			out.printf("%d/%d (%2.0f%%)      %d/%d\n",
 					threshold, nTrees,
@@ -120,7 +218,11 @@ public class HybridStats {
 	
 	
 	public static void printRFriendlyHeadings(PrintWriter out, SummaryStatParameters stats) {
-		out.print("TE\tSI\tDC\tUC\tUS\tQE\tTC\tTCA"); 
+		String separator = "";
+		for (StatisticRegistry.Column column : StatisticRegistry.getColumns()) {
+			out.print(separator+column.getName());
+			separator = "\t";
+		}
 		stats.printHeadings(out);
 		out.println();
 	}
@@ -138,14 +240,74 @@ public class HybridStats {
 	 */
 	public void printRFriendly(PrintWriter out, SummaryStatParameters stats, boolean headers) {
 		if (headers) printRFriendlyHeadings(out,stats);
-		out.printf("%7.3f\t%d\t%d\t%d\t%d\t%5.3f\t%5.3f\t%5.3f", 
-				topoEntropy, splitIncompat, consensusDist, nCherries, splitsObs, quartetEnt, treeCertainty, treeCertaintyAll);
+		String separator = "";
+		for (StatisticRegistry.Column column : StatisticRegistry.getColumns()) {
+			out.print(separator);
+			// R's missing value for anything cut short by the time budget, as for SI-#
+			if (isDegraded(column.getName())) {
+				out.print("NA");
+			} else {
+				out.printf(column.format, getStatByName(column.getName()));
+			}
+			separator = "\t";
+		}
 		stats.printValues(out, this);
 	}
 	
+	/**
+	 * A row of NA values, one per column of printRFriendlyHeadings, for a forest with no statistics
+	 * (e.g. its file could not be read), so rows stay aligned with their inputs.
+	 */
+	public static void printRFriendlyMissing(PrintWriter out, SummaryStatParameters stats) {
+		String separator = "";
+		for (int i=0; i<StatisticRegistry.getColumns().size(); i++) {
+			out.print(separator+"NA");
+			separator = "\t";
+		}
+		stats.printMissingValues(out);
+	}
+	
 	public int getCumulativeSplitCount(int n) { return cumulativeSplitCountByFreq[n]; }
-	public int getReducedSplitIncompatibility(int n) { return reducedSplitIncompat[n]; }
+	/**
+	 * Thresholds not calculated in the constructor (not asked for, or out of time) are calculated now.
+	 */
+	public int getReducedSplitIncompatibility(int n) {
+		if (n<reducedSplitIncompat.length && reducedSplitIncompat[n]>=0) return reducedSplitIncompat[n];
+		return splitCounts.weightedPairwiseSplitIncompatibility(n);
+	}
 	public SplitCounts getSplitCounts() { return splitCounts; }
+	public PhaseMetrics getMetrics() { return metrics; }
+	public StatsContext getContext() { return context; }
+	
+	/**
+	 * Names of the statistics cut short by the time budget (missing or approximate), in order
+	 * of calculation. "SI-#" if any SI-# threshold was skipped. Empty if none.
+	 */
+	public Set<String> getDegraded() { return context.getDegraded(); }
+	
+	/**
+	 * True if 'statName' was cut short by the time budget.
+	 */
+	public boolean isDegraded(String statName) {
+		if (statName.matches("SI-\\d+")) {
+			int index = Integer.valueOf(statName.substring(3));
+			return index<reducedSplitIncompat.length && reducedSplitIncompat[index]==TIMED_OUT;
+		}
+		return context.isDegraded(statName);
+	}
+	
+	/*
+	 * c[i] = number of splits present in fewer than i trees
+	 */
+	static int[] cumulativeSplitCounts(SplitCounts splitCounts) {
+		int[] splitCountByFreq = splitCounts.countByFrequency();
+		int[] cumulative = new int[splitCountByFreq.length];
+		cumulative[0]=0;
+		for (int i=1; i<splitCountByFreq.length; i++) {
+			cumulative[i] = cumulative[i-1] + splitCountByFreq[i-1];
+		}
+		return cumulative;
+	}
 		
 	/**
 	 * Return the entropy of an observed multinomial distribution
@@ -158,7 +320,7 @@ public class HybridStats {
 	 * and we take p_i = n_i/n_tot, which means
 	 * Entropy = n_tot log(n_tot) - sum_i (n_i log(n_i))
 	 */
-	private static double entropy(int[] data) {
+	static double entropy(int[] data) {
 		int sum=0;
 		double entropy = 0;
 		for (int x : data) {
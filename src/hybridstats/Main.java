@@ -1,8 +1,10 @@
 package hybridstats;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -27,6 +29,9 @@ import biojavaExtensions.UseableUnknownBlockParser;
 
 public class Main {
 	private static final String DEFAULT_IN_FILE = "output.nex";
+	// First comments of the trees blocks read by default (see forestFromNexus)
+	public static final String COALESCENT_TREES = "\\[Randomly selected coalescent.*";
+	public static final String LINEAGE_TREES = "\\[Randomly selected lineage.*";
 
 	/**
 	 * @param args
@@ -35,7 +40,16 @@ public class Main {
 		PrintWriter out = new PrintWriter(System.out);
 		boolean useLineageTrees = false;
 		// Very crude command line parsing: '-l' = use lineage trees, optional input file name
-		String filename = DEFAULT_IN_FILE; 
+		// '-t regex' (anywhere) = use the trees block whose first comment matches regex instead
+		String filename = DEFAULT_IN_FILE;
+		List<String> argList = new ArrayList<String>(Arrays.asList(args));
+		String treesBlockRegex = takeOption(argList, "-t");
+		args = argList.toArray(new String[argList.size()]);
+		if (args.length > 0 && args[0].equals("-b")) {
+			// '-b [-l] files...' = batch mode: one R friendly row per file
+			runBatch(args, treesBlockRegex, out);
+			return;
+		}
 		if (args.length > 0) {
 			if (args[0].equals("-l")) {
 				useLineageTrees = true;
@@ -46,9 +60,12 @@ public class Main {
 				if (args.length>1) throw new RuntimeException("Too many command line arguments");
 			}
 		}
+		// Run with -Dhybridstats.metrics=true to get a per-phase timing trailer
+		PhaseMetrics metrics = PhaseMetrics.fromSystemProperty();
+		if (treesBlockRegex==null) treesBlockRegex = treesBlockRegex(useLineageTrees);
 		Forest forest=null;
 		try {
-			forest = readTreesFromFile(filename,useLineageTrees);
+			forest = readTreesFromFile(filename,treesBlockRegex,metrics);
 		} catch (TreeParseException | IOException e1) {
 			// TODO Auto-generated catch block
 			e1.printStackTrace();
@@ -57,7 +74,7 @@ public class Main {
 
 		int nTaxa = forest.get(0).getIdCount();
 		int nTrees = forest.size();
-		HybridStats stats = new HybridStats(forest);
+		HybridStats stats = new HybridStats(forest, metrics);
 		out.printf("%d trees on %d taxa read from file %s\n\n",nTrees,nTaxa,filename);
 		stats.printHumanFriendly(out);
 		
@@ -98,33 +115,120 @@ public class Main {
 		stats.printRFriendly(out, new SummaryStatParameters(), true);
 		
 		splitCounts.printInternodeCertainties(out);
+		metrics.printTrailer(out);
 
 		out.close();
 	}
 	
+	/*
+	 * Batch mode: many files through a StatsPipeline. Stage metrics trail the table if
+	 * hybridstats.metrics is set.
+	 */
+	private static void runBatch(String[] args, String treesBlockRegex, PrintWriter out) {
+		boolean useLineageTrees = false;
+		List<String> filenames = new ArrayList<String>();
+		for (int i=1; i<args.length; i++) {
+			if (args[i].equals("-l")) {
+				useLineageTrees = true;
+			} else {
+				filenames.add(args[i]);
+			}
+		}
+		if (filenames.isEmpty()) throw new RuntimeException("No input files for batch mode");
+		if (treesBlockRegex==null) treesBlockRegex = treesBlockRegex(useLineageTrees);
+		StatsPipeline pipeline = new StatsPipeline();
+		try {
+			pipeline.run(filenames, treesBlockRegex, new SummaryStatParameters(), out);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		if (PhaseMetrics.fromSystemProperty().isEnabled()) pipeline.printMetrics(out);
+		out.close();
+	}
+
+	/*
+	 * Remove 'option' and the argument following it from 'args', returning that argument (null if absent.)
+	 */
+	private static String takeOption(List<String> args, String option) {
+		int i = args.indexOf(option);
+		if (i<0) return null;
+		if (i+1>=args.size()) throw new RuntimeException("Option "+option+" needs an argument");
+		args.remove(i);
+		return args.remove(i);
+	}
+
+	/**
+	 * The regex matched by the first comment of the trees block to read, for lineage or coalescent trees.
+	 */
+	public static String treesBlockRegex(boolean useLineageTrees) {
+		return useLineageTrees ? LINEAGE_TREES : COALESCENT_TREES;
+	}
+
 	public static Forest readTreesFromFile(String filename, boolean useLineageTrees) throws TreeParseException, IOException {
-		File file = new File(filename);
+		return readTreesFromFile(filename, useLineageTrees, PhaseMetrics.DISABLED);
+	}
+	
+	/**
+	 * The file may be gzip compressed (see CompressedInput.)
+	 */
+	public static Forest readTreesFromFile(String filename, boolean useLineageTrees, PhaseMetrics metrics) throws TreeParseException, IOException {
+		return readTreesFromFile(filename, treesBlockRegex(useLineageTrees), metrics);
+	}
+	
+	/**
+	 * @param treesBlockRegex: read the trees block whose first comment matches this
+	 * (e.g. COALESCENT_TREES), or the only trees block if none does.
+	 */
+	public static Forest readTreesFromFile(String filename, String treesBlockRegex, PhaseMetrics metrics) throws TreeParseException, IOException {
+		InputStream in = CompressedInput.open(filename);
+		try {
+			return readTreesFromStream(in, treesBlockRegex, metrics);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * As readTreesFromFile, but from Nexus file contents in a stream (which is not closed.)
+	 */
+	public static Forest readTreesFromStream(InputStream in, boolean useLineageTrees, PhaseMetrics metrics) throws TreeParseException, IOException {
+		return readTreesFromStream(in, treesBlockRegex(useLineageTrees), metrics);
+	}
+	
+	public static Forest readTreesFromStream(InputStream in, String treesBlockRegex, PhaseMetrics metrics) throws TreeParseException, IOException {
+		metrics.start("nexusParse");
+		NexusFileBuilder builder = newNexusFileBuilder();
+		try {
+			NexusFileFormat.parseInputStream(builder, in);
+		} catch (ParseException e) {
+			e.printStackTrace();
+		}
+		return forestFromNexus(builder, treesBlockRegex, metrics);
+	}
+	
+	private static NexusFileBuilder newNexusFileBuilder() {
 		NexusFileBuilder builder=new NexusFileBuilder();
 		builder.setBlockParser(TaxaBlock.TAXA_BLOCK, new UseableUnknownBlockParser());
 		builder.setBlockParser(CharactersBlock.CHARACTERS_BLOCK, new UseableUnknownBlockParser());
 		builder.setBlockParser(DataBlock.DATA_BLOCK, new UseableUnknownBlockParser());
 		builder.setBlockParser(DistancesBlock.DISTANCES_BLOCK, new UseableUnknownBlockParser());
 		builder.setBlockParser(NexusBlockParser.UNKNOWN_BLOCK,	new UseableUnknownBlockParser());
-		
-		try {
-			NexusFileFormat.parseFile(builder, file);
-		} catch (ParseException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		return builder;
+	}
+	
+	/*
+	 * Pick the required trees block (first comment matching 'regex') out of a parsed Nexus file,
+	 * and turn it into a Forest.
+	 */
+	private static Forest forestFromNexus(NexusFileBuilder builder, String regex, PhaseMetrics metrics) throws TreeParseException, IOException {
+		metrics.start("selectTreesBlock");
 		NexusFile nexusFile = builder.getNexusFile();
 		@SuppressWarnings("unchecked")
 		Iterator<NexusBlock> blockIter = nexusFile.blockIterator();
 		TreesBlock treesBlock = null;
 		TreesBlock firstTreesBlock = null;
 		int nTreesBlocks = 0;
-		String regex = useLineageTrees ? "\\[Randomly selected lineage.*" : "\\[Randomly selected coalescent.*";
 		while (blockIter.hasNext()) {
 			NexusBlock block = blockIter.next();
 			if (block.getBlockName().equalsIgnoreCase("trees")) {
@@ -150,6 +254,10 @@ public class Main {
 				throw new RuntimeException("Required trees block not found");
 			}
 		}
-		return new Forest(treesBlock);
+		metrics.start("treeConstruction");
+		Forest forest = new Forest(treesBlock);
+		metrics.stop();
+		metrics.count("treesRead", forest.size());
+		return forest;
 	}
 }
@@ -0,0 +1,116 @@
+package hybridstats;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import palExtensions.ExtRandom;
+
+/**
+ * R friendly tables for several SummaryStatParameters configurations (e.g. the compound stats
+ * of competing ABC models) from one calculation per forest.
+ *
+ * Each forest gets one HybridStats, with the union of the SI-# thresholds any configuration needs
+ * (including those used by compound stats), in parallel over forests. The same worker then formats
+ * that forest's row for every configuration, so HybridStats can be dropped straight away, and one
+ * writer thread per configuration writes its table in forest order. Cost is the statistics once
+ * per forest plus the (cheap) compound stats per configuration. The time budget is the most
+ * generous of the configurations' (none if any has none.)
+ *
+ * @author woodhams
+ *
+ */
+public class MultiConfigStats {
+	private final List<SummaryStatParameters> configs;
+	private final int[] siThresholds;
+	private final long timeBudgetMillis;
+
+	public MultiConfigStats(List<SummaryStatParameters> configs) {
+		if (configs.isEmpty()) throw new IllegalArgumentException("Need at least one configuration");
+		this.configs = new ArrayList<SummaryStatParameters>(configs);
+		siThresholds = SummaryStatParameters.requiredSIThresholds(configs);
+		// the most generous time budget: none (0) if any configuration has none
+		long budget = 0;
+		boolean unlimited = false;
+		for (SummaryStatParameters config : configs) {
+			if (config.timeBudgetMillis<=0) unlimited = true;
+			budget = Math.max(budget, config.timeBudgetMillis);
+		}
+		timeBudgetMillis = unlimited ? 0 : budget;
+	}
+
+	/**
+	 * The SI-# thresholds calculated for each forest
+	 */
+	public int[] getSIThresholds() {
+		return siThresholds.clone();
+	}
+
+	/**
+	 * Write headings then one row per forest, in order, to outs.get(c) for configuration c.
+	 * @param nThreads: number of threads calculating statistics
+	 */
+	public void run(List<Forest> forests, List<PrintWriter> outs, int nThreads) {
+		if (outs.size()!=configs.size()) throw new IllegalArgumentException("Need one output per configuration");
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, nThreads));
+		ExecutorService writers = Executors.newFixedThreadPool(configs.size());
+		try {
+			final List<Future<String[]>> rows = new ArrayList<Future<String[]>>();
+			for (int f=0; f<forests.size(); f++) {
+				final Forest forest = forests.get(f);
+				final long seed = f;
+				rows.add(workers.submit(new Callable<String[]>() {
+					public String[] call() {
+						return formatRows(forest, seed);
+					}
+				}));
+			}
+			List<Future<?>> written = new ArrayList<Future<?>>();
+			for (int c=0; c<configs.size(); c++) {
+				final int config = c;
+				final PrintWriter out = outs.get(c);
+				written.add(writers.submit(new Callable<Void>() {
+					public Void call() throws InterruptedException, ExecutionException {
+						HybridStats.printRFriendlyHeadings(out, configs.get(config));
+						for (Future<String[]> row : rows) out.print(row.get()[config]);
+						out.flush();
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : written) future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted calculating statistics", e);
+		} catch (ExecutionException e) {
+			Throwable cause = (e.getCause() instanceof ExecutionException) ? e.getCause().getCause() : e.getCause();
+			throw new RuntimeException("Error calculating statistics", cause);
+		} finally {
+			workers.shutdownNow();
+			writers.shutdownNow();
+		}
+	}
+
+	/*
+	 * This forest's row in each configuration's table. Greedy consensus ties are broken by an RNG
+	 * seeded with the forest's index, so TC and TCA don't depend on thread scheduling.
+	 */
+	private String[] formatRows(Forest forest, long seed) {
+		HybridStats stats = new HybridStats(forest, siThresholds, timeBudgetMillis, new ExtRandom(seed), PhaseMetrics.DISABLED);
+		String[] rows = new String[configs.size()];
+		for (int c=0; c<rows.length; c++) {
+			StringWriter buffer = new StringWriter();
+			PrintWriter out = new PrintWriter(buffer);
+			stats.printRFriendly(out, configs.get(c), false);
+			out.flush();
+			rows[c] = buffer.toString();
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,284 @@
+package hybridstats;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+
+import pal.misc.IdGroup;
+import pal.tree.Tree;
+
+/**
+ * Split counts held outside the Java heap, for very large taxon sets and split collections.
+ *
+ * An alternative to SplitCounts for the frequency based statistics (US, UC, DC, SI, SI-#, RS#).
+ * Splits are never turned into Split objects or hex strings: each is a bit pattern over the taxa
+ * (normalized to exclude taxon 0), stored with its count in one slot of an open addressing
+ * hash table in a direct ByteBuffer. Queries work from a second direct buffer holding the same
+ * slots packed contiguously in order of decreasing count. Heap use is independent of the number of splits.
+ *
+ * Slot layout: int count (0 = empty slot), int unused, then 'words' longs of split bits.
+ * A single ByteBuffer limits the table to 2GB, e.g. about 30 million slots at 500 taxa.
+ *
+ * @author woodhams
+ *
+ */
+public class OffHeapSplitCounts {
+	private static final int HEADER_BYTES = 8;
+	private static final int INITIAL_CAPACITY = 1024; // slots. Must be a power of 2.
+
+	private final IdGroup idg;
+	private final HashMap<String,Integer> taxonIndex;
+	private final int nTaxa;
+	private final int words; // longs per split
+	private final int slotBytes;
+	private ByteBuffer table;
+	private int capacity; // number of slots in table
+	private int nUnique;
+	private int nTrees;  // sum of weights of trees added
+	private long nSplits; // total number of splits, with multiplicity
+	private ByteBuffer packed; // occupied slots, sorted by decreasing count. Null until needed, then reused.
+	private boolean packedValid; // false once counts change after packing
+	private final long[] scratch; // one split's bits, for probing
+
+	public OffHeapSplitCounts(Forest forest) {
+		this(Utils.taxonOrder(forest));
+		addForest(forest);
+	}
+
+	/**
+	 * @param idGroup: the taxon set, which also defines the taxon order.
+	 */
+	public OffHeapSplitCounts(IdGroup idGroup) {
+		idg = idGroup;
+		nTaxa = idg.getIdCount();
+		taxonIndex = Utils.taxonIndex(idg);
+		words = Utils.wordsFor(nTaxa);
+		slotBytes = HEADER_BYTES + 8*words;
+		capacity = INITIAL_CAPACITY;
+		table = allocate(capacity);
+		nUnique = 0;
+		nTrees = 0;
+		nSplits = 0;
+		packed = null;
+		packedValid = false;
+		scratch = new long[words];
+	}
+
+	private ByteBuffer allocate(int nSlots) {
+		long bytes = (long)nSlots*slotBytes;
+		if (bytes>Integer.MAX_VALUE) throw new IllegalStateException("Off heap split table exceeds 2GB");
+		// a new direct buffer is zero filled, i.e. all slots empty
+		return ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder());
+	}
+
+	public void addForest(Forest forest) {
+		for (int i=0; i<forest.size(); i++) {
+			addTree(forest.get(i), forest.getWeight(i));
+		}
+	}
+
+	public void addTree(Tree tree) {
+		addTree(tree, 1);
+	}
+
+	public void addTree(Tree tree, int weight) {
+		if (weight<1) throw new IllegalArgumentException("Tree weight must be positive, got "+weight);
+		long[] bits = Utils.splitBitsets(tree, taxonIndex, nTaxa);
+		int n = bits.length/words;
+		for (int i=0; i<n; i++) {
+			System.arraycopy(bits, i*words, scratch, 0, words);
+			increment(scratch, weight);
+		}
+		nSplits += (long)n*weight;
+		nTrees += weight;
+		packedValid = false;
+	}
+
+	private void increment(long[] bits, int weight) {
+		if (2*(nUnique+1)>capacity) grow();
+		int mask = capacity-1;
+		int slot = hash(bits) & mask;
+		while (true) {
+			int pos = slot*slotBytes;
+			int count = table.getInt(pos);
+			if (count==0) {
+				table.putInt(pos, weight);
+				for (int w=0; w<words; w++) table.putLong(pos+HEADER_BYTES+8*w, bits[w]);
+				nUnique++;
+				return;
+			}
+			if (sameBits(table, pos, bits)) {
+				table.putInt(pos, count+weight);
+				return;
+			}
+			slot = (slot+1) & mask;
+		}
+	}
+
+	private boolean sameBits(ByteBuffer buffer, int pos, long[] bits) {
+		for (int w=0; w<words; w++) {
+			if (buffer.getLong(pos+HEADER_BYTES+8*w)!=bits[w]) return false;
+		}
+		return true;
+	}
+
+	private static int hash(long[] bits) {
+		long h = 0x9E3779B97F4A7C15L;
+		for (long word : bits) {
+			h = (h ^ word) * 0xBF58476D1CE4E5B9L;
+			h ^= h >>> 31;
+		}
+		return (int)(h ^ (h>>>32));
+	}
+
+	/*
+	 * Double the table, reinserting every occupied slot.
+	 */
+	private void grow() {
+		ByteBuffer oldTable = table;
+		int oldCapacity = capacity;
+		capacity *= 2;
+		table = allocate(capacity);
+		int mask = capacity-1;
+		long[] bits = new long[words]; // not 'scratch': that holds the split being inserted
+		for (int oldSlot=0; oldSlot<oldCapacity; oldSlot++) {
+			int oldPos = oldSlot*slotBytes;
+			if (oldTable.getInt(oldPos)==0) continue;
+			for (int w=0; w<words; w++) bits[w] = oldTable.getLong(oldPos+HEADER_BYTES+8*w);
+			int slot = hash(bits) & mask;
+			while (table.getInt(slot*slotBytes)!=0) slot = (slot+1) & mask;
+			copySlot(oldTable, oldPos, table, slot*slotBytes);
+		}
+	}
+
+	private void copySlot(ByteBuffer from, int fromPos, ByteBuffer to, int toPos) {
+		to.putInt(toPos, from.getInt(fromPos));
+		for (int w=0; w<words; w++) {
+			to.putLong(toPos+HEADER_BYTES+8*w, from.getLong(fromPos+HEADER_BYTES+8*w));
+		}
+	}
+
+	/*
+	 * Build 'packed' if needed: counting sort of occupied slots by decreasing count.
+	 * Only a histogram of counts (size nTrees) lives on the heap.
+	 * The buffer is reused while it is big enough, so alternating adds and queries don't leave a trail
+	 * of direct buffers waiting for GC. It holds half the table's slots (the most that can be occupied),
+	 * so is only replaced when the table grows.
+	 */
+	private void pack() {
+		if (packedValid) return;
+		int[] start = new int[nTrees+2]; // start[c] = first packed position of count c, counting down
+		for (int slot=0; slot<capacity; slot++) {
+			int count = table.getInt(slot*slotBytes);
+			if (count>0) start[count]++;
+		}
+		int position = 0;
+		for (int count=nTrees; count>0; count--) {
+			int n = start[count];
+			start[count] = position;
+			position += n;
+		}
+		if (packed==null || packed.capacity()<nUnique*slotBytes) packed = allocate(capacity/2);
+		for (int slot=0; slot<capacity; slot++) {
+			int pos = slot*slotBytes;
+			int count = table.getInt(pos);
+			if (count>0) copySlot(table, pos, packed, (start[count]++)*slotBytes);
+		}
+		packedValid = true;
+	}
+
+	private int packedCount(int i) {
+		return packed.getInt(i*slotBytes);
+	}
+
+	private void packedBits(int i, long[] bits) {
+		int pos = i*slotBytes+HEADER_BYTES;
+		for (int w=0; w<words; w++) bits[w] = packed.getLong(pos+8*w);
+	}
+
+	public int numUniqueSplits() {
+		return nUnique;
+	}
+
+	public long totalNumberSplits() {
+		return nSplits;
+	}
+
+	public int getNumberTrees() {
+		return nTrees;
+	}
+
+	/**
+	 * As SplitCounts.sumRFtoMajRuleTree()
+	 */
+	public long sumRFtoMajRuleTree() {
+		pack();
+		long sumDist = 0;
+		for (int i=0; i<nUnique; i++) {
+			int count = packedCount(i);
+			sumDist += Math.min(count, nTrees-count);
+		}
+		return sumDist;
+	}
+
+	/**
+	 * As SplitCounts.numUniqueCherries()
+	 */
+	public int numUniqueCherries() {
+		pack();
+		int count = 0;
+		long[] bits = new long[words];
+		for (int i=0; i<nUnique; i++) {
+			packedBits(i, bits);
+			int size = Utils.bitCount(bits, 0, words);
+			if (size==2 || size==nTaxa-2) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * As SplitCounts.countByFrequency()
+	 * @return f[] where f[i]==c indicates there were c splits which were present in exactly i+1 trees.
+	 */
+	public int[] countByFrequency() {
+		pack();
+		int[] freq = new int[nTrees];
+		for (int i=0; i<nUnique; i++) freq[packedCount(i)-1]++;
+		return freq;
+	}
+
+	/**
+	 * As SplitCounts.weightedPairwiseSplitIncompatibility(threshold), but as a long
+	 * as large split collections easily overflow an int.
+	 * As splits are packed in decreasing count order, the scan stops at the first split
+	 * with count <= threshold.
+	 */
+	public long weightedPairwiseSplitIncompatibility(int threshold) {
+		pack();
+		// number of splits with count above threshold
+		int n = 0;
+		while (n<nUnique && packedCount(n)>threshold) n++;
+		long[] bits1 = new long[words];
+		long[] bits2 = new long[words];
+		long sum = 0;
+		for (int i=0; i<n-1; i++) {
+			long count1 = packedCount(i)-threshold;
+			packedBits(i, bits1);
+			for (int j=i+1; j<n; j++) {
+				packedBits(j, bits2);
+				if (!Utils.compatible(bits1, 0, bits2, 0, words)) {
+					sum += count1*(packedCount(j)-threshold);
+				}
+			}
+		}
+		return sum;
+	}
+
+	public long weightedPairwiseSplitIncompatibility() {
+		return weightedPairwiseSplitIncompatibility(0);
+	}
+
+	public IdGroup getIdGroup() {
+		return idg;
+	}
+}
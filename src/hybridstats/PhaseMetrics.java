@@ -0,0 +1,155 @@
+package hybridstats;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Records wall time, CPU time and allocated bytes for named phases of a calculation
+ * (all measured on the calling thread) plus named counts (e.g. number of unique splits).
+ *
+ * Use PhaseMetrics.DISABLED when no metrics are wanted: its methods return immediately.
+ * Phases do not nest: start() closes any phase already in progress.
+ *
+ * @author woodhams
+ *
+ */
+public class PhaseMetrics {
+	public static final PhaseMetrics DISABLED = new PhaseMetrics(false);
+	/** System property which turns metrics on in Main */
+	public static final String PROPERTY = "hybridstats.metrics";
+	/** Prefix of trailer lines. R's read.table treats these as comments. */
+	public static final String TRAILER_PREFIX = "#";
+
+	private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+	private final boolean enabled;
+	private final LinkedHashMap<String,Phase> phases;
+	private final LinkedHashMap<String,Long> counts;
+	private Phase current;
+	private long startWall, startCpu, startAlloc;
+
+	public static class Phase {
+		private final String name;
+		private int calls;
+		private long wallNanos;
+		private long cpuNanos;
+		private long allocatedBytes;
+
+		private Phase(String name) {
+			this.name = name;
+		}
+		public String getName() { return name; }
+		public int getCalls() { return calls; }
+		public long getWallNanos() { return wallNanos; }
+		/** -1 if the JVM does not support thread CPU time */
+		public long getCpuNanos() { return cpuNanos; }
+		/** -1 if the JVM does not support thread allocation counting */
+		public long getAllocatedBytes() { return allocatedBytes; }
+	}
+
+	public PhaseMetrics() {
+		this(true);
+	}
+
+	private PhaseMetrics(boolean enabled) {
+		this.enabled = enabled;
+		phases = new LinkedHashMap<String,Phase>();
+		counts = new LinkedHashMap<String,Long>();
+		current = null;
+	}
+
+	/**
+	 * Returns an enabled PhaseMetrics if system property PROPERTY is "true", else DISABLED.
+	 */
+	public static PhaseMetrics fromSystemProperty() {
+		return Boolean.getBoolean(PROPERTY) ? new PhaseMetrics() : DISABLED;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void start(String phaseName) {
+		if (!enabled) return;
+		if (current!=null) stop();
+		current = phases.get(phaseName);
+		if (current==null) {
+			current = new Phase(phaseName);
+			phases.put(phaseName, current);
+		}
+		startAlloc = allocatedBytes();
+		startCpu = cpuTime();
+		startWall = System.nanoTime();
+	}
+
+	public void stop() {
+		if (!enabled || current==null) return;
+		long wall = System.nanoTime();
+		long cpu = cpuTime();
+		long alloc = allocatedBytes();
+		current.calls++;
+		current.wallNanos += wall-startWall;
+		current.cpuNanos = (cpu<0) ? -1 : current.cpuNanos+cpu-startCpu;
+		current.allocatedBytes = (alloc<0) ? -1 : current.allocatedBytes+alloc-startAlloc;
+		current = null;
+	}
+
+	public void count(String name, long value) {
+		if (!enabled) return;
+		counts.put(name, value);
+	}
+
+	public Collection<Phase> getPhases() {
+		return Collections.unmodifiableCollection(phases.values());
+	}
+
+	public Phase getPhase(String phaseName) {
+		return phases.get(phaseName);
+	}
+
+	public Map<String,Long> getCounts() {
+		return Collections.unmodifiableMap(counts);
+	}
+
+	/**
+	 * Print metrics as tab delimited lines starting with TRAILER_PREFIX, e.g.
+	 * #phase	splitCounts	1	1520000	1490000	2048000
+	 * #count	uniqueSplits	57
+	 * Prints nothing if disabled.
+	 */
+	public void printTrailer(PrintWriter out) {
+		if (!enabled) return;
+		out.printf("%sphase\tname\tcalls\twall_ns\tcpu_ns\talloc_bytes\n", TRAILER_PREFIX);
+		for (Phase phase : phases.values()) {
+			out.printf("%sphase\t%s\t%d\t%d\t%d\t%d\n", TRAILER_PREFIX,
+					phase.name, phase.calls, phase.wallNanos, phase.cpuNanos, phase.allocatedBytes);
+		}
+		for (Entry<String,Long> entry : counts.entrySet()) {
+			out.printf("%scount\t%s\t%d\n", TRAILER_PREFIX, entry.getKey(), entry.getValue());
+		}
+	}
+
+	private static long cpuTime() {
+		return THREAD_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_BEAN.getCurrentThreadCpuTime() : -1;
+	}
+
+	/*
+	 * Allocation counting is in the com.sun.management extension of ThreadMXBean,
+	 * which not every JVM provides.
+	 */
+	private static long allocatedBytes() {
+		if (THREAD_BEAN instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)THREAD_BEAN;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+}
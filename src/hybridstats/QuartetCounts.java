@@ -0,0 +1,234 @@
+package hybridstats;
+
+import java.util.HashMap;
+
+import pal.misc.IdGroup;
+import pal.tree.Tree;
+
+/**
+ * Counts, for every quadruple of taxa, how many trees display each of its three
+ * resolved quartet topologies, and how many leave it unresolved (polytomy).
+ *
+ * Quadruples {a,b,c,d} with a<b<c<d (in the taxon order of the first tree) are indexed
+ * by their colex rank, and the counts are kept in one flat int array, four entries per quadruple.
+ *
+ * Topologies are found by the four point condition on edge-count distances, which
+ * classifies unresolved quartets at no extra cost, so multifurcating trees are processed
+ * exactly like binary ones. As d(x,y) = depth(x)+depth(y)-2*depth(lca(x,y)), and the leaf depths
+ * cancel between the three pair sums, the test is made directly on LCA depths (largest sum wins.)
+ *
+ * @author woodhams
+ *
+ */
+public class QuartetCounts {
+	public static final int AB_CD = 0;
+	public static final int AC_BD = 1;
+	public static final int AD_BC = 2;
+	public static final int UNRESOLVED = 3;
+	public static final int N_TOPOLOGIES = 4;
+
+	private final IdGroup order; // defines the taxon numbering
+	private final HashMap<String,Integer> taxonIndex;
+	private final int nTaxa;
+	private final int nQuads;
+	private final int[] counts; // counts[N_TOPOLOGIES*quadIndex + topology]
+	private int nTrees; // sum of weights of trees added
+	// per-tree workspace, reused between trees
+	private final int[] lcaDepth; // lcaDepth[a*nTaxa+b] = depth (in edges from the root) of lca(a,b)
+	private final int[] leafOrder;
+
+	public QuartetCounts(Forest forest) {
+		this(Utils.taxonOrder(forest));
+		addForest(forest);
+	}
+
+	/**
+	 * @param order: the taxon set, and the order in which taxa are numbered.
+	 */
+	public QuartetCounts(IdGroup order) {
+		this.order = order;
+		nTaxa = order.getIdCount();
+		if (nTaxa<4) throw new IllegalArgumentException("Need at least four taxa for quartets");
+		long n4 = numberOfQuadruples(nTaxa);
+		if (n4*N_TOPOLOGIES > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many taxa ("+nTaxa+") for quartet counting");
+		nQuads = (int)n4;
+		counts = new int[N_TOPOLOGIES*nQuads];
+		taxonIndex = Utils.taxonIndex(order);
+		lcaDepth = new int[nTaxa*nTaxa];
+		leafOrder = new int[nTaxa];
+		nTrees = 0;
+	}
+
+	public static long numberOfQuadruples(int nTaxa) {
+		return (long)nTaxa*(nTaxa-1)*(nTaxa-2)*(nTaxa-3)/24;
+	}
+
+	public void addForest(Forest forest) {
+		for (int i=0; i<forest.size(); i++) {
+			addTree(forest.get(i), forest.getWeight(i));
+		}
+	}
+
+	public void addTree(Tree tree) {
+		addTree(tree, 1);
+	}
+
+	/**
+	 * Add a tree which stands for 'weight' identical trees.
+	 */
+	public void addTree(Tree tree, int weight) {
+		if (weight<1) throw new IllegalArgumentException("Tree weight must be positive, got "+weight);
+		Utils.fillLcaDepths(tree, taxonIndex, nTaxa, lcaDepth, leafOrder);
+		final int n = nTaxa;
+		final int[] d = lcaDepth;
+		int q = 0;
+		// loop order (t3 outermost) gives colex rank order of {a<b<c<d}
+		for (int t3=3; t3<n; t3++) {
+			for (int t2=2; t2<t3; t2++) {
+				int d23 = d[t2*n+t3];
+				for (int t1=1; t1<t2; t1++) {
+					int d12 = d[t1*n+t2];
+					int d13 = d[t1*n+t3];
+					for (int t0=0; t0<t1; t0++) {
+						int row = t0*n;
+						int s0 = d[row+t1] + d23;      // t0t1|t2t3
+						int s1 = d[row+t2] + d13;      // t0t2|t1t3
+						int s2 = d[row+t3] + d12;      // t0t3|t1t2
+						int topo;
+						if (s0>s1) {
+							topo = (s0>s2) ? AB_CD : AD_BC;
+						} else if (s1>s0) {
+							topo = (s1>s2) ? AC_BD : AD_BC;
+						} else {
+							// s0==s1: by the four point condition, either s2 is larger or all are equal.
+							topo = (s2>s0) ? AD_BC : UNRESOLVED;
+						}
+						counts[N_TOPOLOGIES*q+topo] += weight;
+						q++;
+					}
+				}
+			}
+		}
+		nTrees += weight;
+	}
+
+	/**
+	 * Quartet entropy, normalized to the range [0,1].
+	 *
+	 * An unresolved quartet says nothing about which resolution is correct, so each unresolved
+	 * observation is shared equally (1/3 each) among the three resolved topologies.
+	 * Thus a quadruple unresolved in every tree scores maximum entropy, and for forests of binary
+	 * trees the result is the plain multinomial entropy.
+	 */
+	public double entropy() {
+		return Utils.resolutionEntropy(counts, nQuads, nTrees);
+	}
+
+	/**
+	 * Break quartet entropy down by taxon, and find quartet concordance factors for the splits of 
+	 * a reference tree (e.g. the greedy consensus tree), all in one pass over the counts.
+	 *
+	 * Per-taxon entropy is the mean normalized entropy of the quadruples containing that taxon, so is in [0,1]
+	 * and averages (over quadruples) to the overall quartet entropy. A hybrid taxon tends to have a high value.
+	 *
+	 * The concordance factor of a split A|B is the proportion of (tree, quadruple {a1,a2,b1,b2}) 
+	 * combinations where the tree displays a1a2|b1b2, unresolved quartets counting 1/3.
+	 */
+	public Concordance concordance(Tree referenceTree) {
+		double[] log = Utils.logTable(nTrees);
+		final int n = nTaxa;
+		int words = Utils.wordsFor(n);
+		long[] splitBits = Utils.splitBitsets(referenceTree, taxonIndex, n);
+		int nSplits = splitBits.length/words;
+		// side[s*n+t] = whether taxon t is on the (non taxon 0) side of split s
+		boolean[] side = new boolean[nSplits*n];
+		String[] labels = new String[nSplits];
+		for (int s=0; s<nSplits; s++) {
+			StringBuilder inSide = new StringBuilder();
+			StringBuilder outSide = new StringBuilder();
+			for (int t=0; t<n; t++) {
+				side[s*n+t] = (splitBits[s*words+(t>>>6)] & (1L<<(t & 63))) != 0;
+				StringBuilder buf = side[s*n+t] ? inSide : outSide;
+				if (buf.length()>0) buf.append(',');
+				buf.append(order.getIdentifier(t).getName());
+			}
+			labels[s] = inSide+"|"+outSide;
+		}
+		double[] taxonSum = new double[n];
+		double[] concordant = new double[nSplits];
+		long[] decisive = new long[nSplits];
+		double entropySum = 0;
+		double log3 = Math.log(3);
+		int q = 0;
+		for (int t3=3; t3<n; t3++) {
+			for (int t2=2; t2<t3; t2++) {
+				for (int t1=1; t1<t2; t1++) {
+					for (int t0=0; t0<t1; t0++) {
+						int base = N_TOPOLOGIES*q;
+						double quadEntropy = (log[nTrees]-Utils.sumXLogX(counts, N_TOPOLOGIES*q, log)/nTrees)/log3;
+						entropySum += quadEntropy;
+						taxonSum[t0] += quadEntropy;
+						taxonSum[t1] += quadEntropy;
+						taxonSum[t2] += quadEntropy;
+						taxonSum[t3] += quadEntropy;
+						double share = counts[base+UNRESOLVED]/3.0;
+						for (int s=0; s<nSplits; s++) {
+							int row = s*n;
+							boolean b0 = side[row+t0], b1 = side[row+t1], b2 = side[row+t2], b3 = side[row+t3];
+							int nIn = (b0?1:0)+(b1?1:0)+(b2?1:0)+(b3?1:0);
+							if (nIn!=2) continue; // split does not separate this quadruple two and two
+							int topo = (b0==b1) ? AB_CD : (b0==b2) ? AC_BD : AD_BC;
+							concordant[s] += counts[base+topo]+share;
+							decisive[s]++;
+						}
+						q++;
+					}
+				}
+			}
+		}
+		double quadsPerTaxon = numberOfQuadruples(n)*4.0/n;
+		double[] taxonEntropy = new double[n];
+		for (int t=0; t<n; t++) taxonEntropy[t] = taxonSum[t]/quadsPerTaxon;
+		double[] splitConcordance = new double[nSplits];
+		for (int s=0; s<nSplits; s++) splitConcordance[s] = concordant[s]/(decisive[s]*(double)nTrees);
+		return new Concordance(entropySum/nQuads, taxonEntropy, labels, splitConcordance);
+	}
+
+	/*
+	 * Results of concordance(). Taxa are in the order of getIdGroup().
+	 */
+	public static class Concordance {
+		public final double entropy; // overall normalized quartet entropy
+		public final double[] taxonEntropy;
+		public final String[] splitLabels; // "a,b|c,d,e" for each split of the reference tree
+		public final double[] splitConcordance;
+
+		private Concordance(double entropy, double[] taxonEntropy, String[] splitLabels, double[] splitConcordance) {
+			this.entropy = entropy;
+			this.taxonEntropy = taxonEntropy;
+			this.splitLabels = splitLabels;
+			this.splitConcordance = splitConcordance;
+		}
+	}
+
+	public int getCount(int quadIndex, int topology) {
+		return counts[N_TOPOLOGIES*quadIndex+topology];
+	}
+
+	/**
+	 * Colex rank of quadruple {a,b,c,d}, a<b<c<d: the index used by getCount.
+	 */
+	public static int quadrupleIndex(int a, int b, int c, int d) {
+		return (int)(choose(d,4)+choose(c,3)+choose(b,2)+a);
+	}
+
+	private static long choose(int n, int k) {
+		long result = 1;
+		for (int i=0; i<k; i++) result = result*(n-i)/(i+1);
+		return result;
+	}
+
+	public int getNumberQuadruples() { return nQuads; }
+	public int getNumberTrees() { return nTrees; }
+	public IdGroup getIdGroup() { return order; }
+}
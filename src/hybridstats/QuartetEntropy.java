@@ -1,70 +1,31 @@
 package hybridstats;
 
-import java.util.EnumMap;
-import java.util.HashMap;
-import java.util.Iterator;
-
-import pal.distance.DistanceMatrix;
-import pal.misc.IdGroup;
 import pal.tree.Node;
 import pal.tree.SimpleNode;
 import pal.tree.SimpleTree;
 import pal.tree.Tree;
-import palExtensions.ExTreeUtils;
-import palExtensions.Quadruple;
-import palExtensions.Quartet.Topology;
 
 /*
  * A static class.
  * 
- * Routines to calculate quartet entropy of a set of trees
+ * Routines to calculate quartet entropy of a set of trees.
+ * 
+ * Counting is done by QuartetCounts. Unresolved quartets (from polytomies) are
+ * shared equally among the three resolved topologies: see QuartetCounts.entropy()
  */
 
 public class QuartetEntropy {
 	public static double entropy(Forest forest) {
-		int nTrees = forest.size();
-		Quadruple[] quads = Quadruple.allQuadruples(forest.get(0));
-		int nQuads = quads.length;
-		HashMap<Quadruple,EnumMap<Topology,Integer>> topologyCounts = new HashMap<>(nQuads);
-		for (Quadruple quad : quads) {
-			EnumMap<Topology,Integer> map = new EnumMap<>(Topology.class);
-			for (Topology topo : Topology.values()) map.put(topo, 0);
-			topologyCounts.put(quad,map);
-		}
-		Iterator<Tree> iter = forest.iterator();
-		IdGroup order = quads[0].getIdGroup();
-		while (iter.hasNext()) {
-			Tree tree = iter.next();
-			// I should simply be able to do:
-			// DistanceMatrix dist = new TreeDistanceMatrix(tree, order, true, 0);
-			// but that is buggy.
-			DistanceMatrix dist = ExTreeUtils.treeToDistanceMatrix(tree, order, true, 0);
-			for (Quadruple quad : quads) {
-				Topology topo = quad.whichQuartet(dist).getTopology();
-				EnumMap<Topology,Integer> count = topologyCounts.get(quad);
-				count.put(topo, count.get(topo)+1);
-			}
-		}
-		// cache log-of-integer values:
-		double[] log = new double[nTrees+1];
-		for (int i=1; i<=nTrees; i++) log[i] = Math.log(i);
-		double sum = 0;
-		for (Quadruple quad : quads) {
-			EnumMap<Topology,Integer> count = topologyCounts.get(quad);
-			for (Topology topo : Topology.values()) {
-				int n = count.get(topo); // number of times this topology was observed
-				if (n>0) {
-					if (topo == Topology.UNRESOLVED) throw new RuntimeException("haven't figured out how to deal with this yet");
-					sum += n*log[n];
-				}
-			}
-		}
-		// same result as sum(-p_i log(p_i)) over all quartets where p_i = proportion of trees the quartet appears in.
-		double entropy = nQuads*log[nTrees]-sum/nTrees; 
-		/*
-		 *  Normalize to max entropy, so return value is in range [0,1]
-		 */
-		return entropy / (nQuads*Math.log(3));
+		return new QuartetCounts(forest).entropy();
+	}
+	
+	/**
+	 * Per-taxon quartet entropies, and quartet concordance factors of the greedy consensus tree splits,
+	 * from quartets already counted (e.g. StatsContext.getQuartetCounts()). See QuartetCounts.concordance()
+	 * @param splitCounts: split counts of the same forest, to supply the greedy consensus tree
+	 */
+	public static QuartetCounts.Concordance concordance(QuartetCounts quartetCounts, SplitCounts splitCounts) {
+		return quartetCounts.concordance(splitCounts.greedyConsensusTree(false));
 	}
 	
 	public static void test() {
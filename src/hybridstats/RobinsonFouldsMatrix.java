@@ -0,0 +1,215 @@
+package hybridstats;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import palExtensions.NeoSplitSystem;
+import palExtensions.NeoSplitUtils;
+import palExtensions.Split;
+
+/**
+ * All-pairs Robinson Foulds distances between the trees of a Forest.
+ *
+ * Each unique split of the SplitCounts gets an integer id, and each tree becomes the set of its
+ * split ids, held either as a bitset (when the split collection is small enough that
+ * a bitset is no longer than the id list) or as a sorted int array.
+ * RF(i,j) = |A|+|B|-2|A intersect B| is then a popcount of an XOR, or a merge.
+ *
+ * Distances are computed in square tiles of the matrix (for cache reuse), spread over a thread pool,
+ * and stored as the upper triangle in one int array.
+ * Distances are between forest entries: tree weights are ignored.
+ *
+ * @author woodhams
+ *
+ */
+public class RobinsonFouldsMatrix {
+	private static final int TILE = 64; // tile edge, in trees
+	private static final long MAX_BITSET_BYTES = 1L<<28; // 256MB
+
+	private final int nTrees;
+	private final int[] distances; // upper triangle, row major. See index().
+	// per tree split sets: exactly one of these is non-null
+	private final long[][] bitsets;
+	private final int[][] idLists;
+	private final int[] nTreeSplits;
+
+	public RobinsonFouldsMatrix(Forest forest) {
+		this(forest, new SplitCounts(forest), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param splitCounts: must contain every split of every tree in 'forest' (e.g. be built from it)
+	 * @param nThreads: number of threads to compute with
+	 */
+	public RobinsonFouldsMatrix(Forest forest, SplitCounts splitCounts, int nThreads) {
+		nTrees = forest.size();
+		String[] hexArray = splitCounts.getHexArray();
+		HashMap<String,Integer> splitIds = new HashMap<String,Integer>(2*hexArray.length);
+		for (int id=0; id<hexArray.length; id++) splitIds.put(hexArray[id], id);
+
+		int[][] ids = new int[nTrees][];
+		nTreeSplits = new int[nTrees];
+		long totalSplits = 0;
+		for (int t=0; t<nTrees; t++) {
+			NeoSplitSystem splitSys = NeoSplitUtils.getSplits(forest.get(t));
+			int[] treeIds = new int[splitSys.size()];
+			int k = 0;
+			for (Split split : splitSys) {
+				Integer id = splitIds.get(split.toHexString());
+				if (id==null) throw new IllegalArgumentException("Split of tree "+t+" is not in the SplitCounts");
+				treeIds[k++] = id;
+			}
+			Arrays.sort(treeIds);
+			ids[t] = treeIds;
+			nTreeSplits[t] = k;
+			totalSplits += k;
+		}
+
+		int words = (hexArray.length+63) >>> 6;
+		double meanSplits = (nTrees==0) ? 0 : (double)totalSplits/nTrees;
+		if (words<=meanSplits && (long)nTrees*words*8<=MAX_BITSET_BYTES) {
+			bitsets = new long[nTrees][words];
+			for (int t=0; t<nTrees; t++) {
+				for (int id : ids[t]) bitsets[t][id>>>6] |= 1L<<(id & 63);
+			}
+			idLists = null;
+		} else {
+			bitsets = null;
+			idLists = ids;
+		}
+
+		long nPairs = (long)nTrees*(nTrees-1)/2;
+		if (nPairs>Integer.MAX_VALUE) throw new IllegalArgumentException("Too many trees ("+nTrees+") for an RF matrix");
+		distances = new int[(int)nPairs];
+		computeAll(Math.max(1, nThreads));
+	}
+
+	/*
+	 * One task per tile row, covering tiles on and right of the diagonal.
+	 */
+	private void computeAll(int nThreads) {
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int rowStart=0; rowStart<nTrees; rowStart+=TILE) {
+				final int iStart = rowStart;
+				futures.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						computeTileRow(iStart);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures) future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted computing RF matrix", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error computing RF matrix", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void computeTileRow(int iStart) {
+		int iEnd = Math.min(iStart+TILE, nTrees);
+		for (int jStart=iStart; jStart<nTrees; jStart+=TILE) {
+			int jEnd = Math.min(jStart+TILE, nTrees);
+			for (int i=iStart; i<iEnd; i++) {
+				for (int j=Math.max(i+1, jStart); j<jEnd; j++) {
+					distances[index(i,j)] = (bitsets!=null) ? bitsetDistance(i,j) : mergeDistance(i,j);
+				}
+			}
+		}
+	}
+
+	private int bitsetDistance(int i, int j) {
+		long[] a = bitsets[i];
+		long[] b = bitsets[j];
+		int dist = 0;
+		for (int w=0; w<a.length; w++) dist += Long.bitCount(a[w]^b[w]);
+		return dist;
+	}
+
+	private int mergeDistance(int i, int j) {
+		int[] a = idLists[i];
+		int[] b = idLists[j];
+		int shared = 0;
+		int p = 0, q = 0;
+		while (p<a.length && q<b.length) {
+			if (a[p]<b[q]) {
+				p++;
+			} else if (a[p]>b[q]) {
+				q++;
+			} else {
+				shared++; p++; q++;
+			}
+		}
+		return a.length+b.length-2*shared;
+	}
+
+	// position of (i,j), i<j, in the row major upper triangle
+	private int index(int i, int j) {
+		return (int)((long)i*(2L*nTrees-i-1)/2 + (j-i-1));
+	}
+
+	public int getDistance(int i, int j) {
+		if (i==j) return 0;
+		return (i<j) ? distances[index(i,j)] : distances[index(j,i)];
+	}
+
+	public int size() {
+		return nTrees;
+	}
+
+	/**
+	 * Number of non-trivial splits in tree i: the maximum RF contribution of that tree.
+	 */
+	public int getNumberSplits(int i) {
+		return nTreeSplits[i];
+	}
+
+	/**
+	 * Write the full matrix, tab delimited, one row per line.
+	 */
+	public void writeDense(PrintWriter out) {
+		for (int i=0; i<nTrees; i++) {
+			for (int j=0; j<nTrees; j++) {
+				if (j>0) out.print('\t');
+				out.print(getDistance(i,j));
+			}
+			out.println();
+		}
+	}
+
+	/**
+	 * Write the upper triangle (including diagonal blocks) as blockSize x blockSize blocks,
+	 * each introduced by a line "#block<tab>firstRow<tab>firstColumn", followed by its rows, tab delimited.
+	 * Suitable for matrices too large to write or read as a single dense table.
+	 */
+	public void writeBlocked(PrintWriter out, int blockSize) {
+		if (blockSize<1) throw new IllegalArgumentException("Block size must be positive, got "+blockSize);
+		for (int iStart=0; iStart<nTrees; iStart+=blockSize) {
+			int iEnd = Math.min(iStart+blockSize, nTrees);
+			for (int jStart=iStart; jStart<nTrees; jStart+=blockSize) {
+				int jEnd = Math.min(jStart+blockSize, nTrees);
+				out.printf("#block\t%d\t%d\n", iStart, jStart);
+				for (int i=iStart; i<iEnd; i++) {
+					for (int j=jStart; j<jEnd; j++) {
+						if (j>jStart) out.print('\t');
+						out.print(getDistance(i,j));
+					}
+					out.println();
+				}
+			}
+		}
+	}
+}
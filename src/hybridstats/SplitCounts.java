@@ -37,7 +37,7 @@ public class SplitCounts implements IdGroup {
 	private Vector<Split> greedySplits; // Derived from sortedSplits, the splits in the greedy consensus tree. Is null until first needed.
 	private Vector<Integer> greedySplitIndex; // where in sortedSplits the greedySplits occur.
 	private IdGroup idg; // all splits must have the same IdGroup, to ensure consistent ordering of taxa.
-	private int nTrees; // when adding splits a tree at a time, how many trees were added?
+	private int nTrees; // when adding splits a tree at a time, how many trees (sum of weights) were added?
 	private boolean splitsAddedOnlyViaTrees;
 	private int nSplits; // total number of splits. Equal to the sum of values in 'counts'.
 	private ExtRandom shuffler = DEFAULT_RNG;
@@ -47,7 +47,7 @@ public class SplitCounts implements IdGroup {
 	 */
 	public SplitCounts(NeoSplitSystem system) {
 		this();
-		addSplitSystem__(system);
+		addSplitSystem__(system, 1);
 	}
 	
 	public SplitCounts(Forest forest) {
@@ -89,8 +89,13 @@ public class SplitCounts implements IdGroup {
 	}
 	
 	public void addForest(Forest forest) {
-		for (Tree tree : forest) {
-			this.addTree(tree);
+		/*
+		 * If all trees share the forest's taxon set, their split systems all have the same (canonically
+		 * ordered) IdGroup, so only the first needs comparing with ours.
+		 */
+		boolean sameTaxa = (forest.getTaxa()!=null);
+		for (int i=0; i<forest.size(); i++) {
+			addTree(forest.get(i), forest.getWeight(i), i==0 || !sameTaxa);
 		}
 	}
 	
@@ -100,27 +105,76 @@ public class SplitCounts implements IdGroup {
 	 */
 	public void addSplitSystem(NeoSplitSystem splitSys) {
 		splitsAddedOnlyViaTrees=false;
-		addSplitSystem__(splitSys);
+		addSplitSystem__(splitSys, 1);
 	}
 	
-	private void addSplitSystem__(NeoSplitSystem splitSys) {
-		setIdGroup(splitSys.getIdGroup());
+	private void addSplitSystem__(NeoSplitSystem splitSys, int weight) {
+		addSplitSystem__(splitSys, weight, true);
+	}
+	
+	private void addSplitSystem__(NeoSplitSystem splitSys, int weight, boolean checkTaxa) {
+		if (checkTaxa) setIdGroup(splitSys.getIdGroup());
+		// counts are changing: cached sort and greedy consensus are stale
+		sortedSplits = null;
+		greedySplits = null;
+		greedySplitIndex = null;
 		for (Split split : splitSys) {
-			nSplits++;
+			nSplits += weight;
 			String hex = split.toHexString();
-			if (counts.containsKey(hex)) {
-				counts.put(hex, counts.get(hex)+1);
+			Integer count = counts.get(hex);
+			if (count!=null) {
+				counts.put(hex, count+weight);
 			} else {
-				counts.put(hex, 1);
+				counts.put(hex, weight);
 				splits.put(hex,split);
 			}
 		}
 	}
 	
 	public void addTree(Tree tree) {
-		nTrees++;
+		addTree(tree, 1);
+	}
+	
+	/*
+	 * For building a SplitCounts from counts gathered elsewhere (e.g. approximate or concurrent counters).
+	 * Caller is responsible for calling addTreeCount first, and for 'split' being on the same taxon set.
+	 * A split is in at most every tree, and countByFrequency, sumRFtoMajRuleTree etc. rely on that.
+	 */
+	void addCountedSplit(String hex, Split split, int count) {
+		if (counts.containsKey(hex)) throw new IllegalArgumentException("Split "+hex+" added twice");
+		if (count<1 || count>nTrees) throw new IllegalArgumentException("Count "+count+" of split "+hex+" is not in 1.."+nTrees);
+		counts.put(hex, count);
+		splits.put(hex, split);
+		nSplits += count;
+		sortedSplits = null;
+		greedySplits = null;
+		greedySplitIndex = null;
+	}
+	
+	void addTreeCount(int n, IdGroup idGroup) {
+		setIdGroup(idGroup);
+		nTrees += n;
+	}
+	
+	/**
+	 * Add a tree which stands for 'weight' identical trees.
+	 */
+	public void addTree(Tree tree, int weight) {
+		addTree(tree, weight, true);
+	}
+	
+	/*
+	 * Splits stay keyed by PAL Split and hex string here, not by leaf index bitsets: the consensus
+	 * trees, IC/ICA and compatibility tests need Split objects, and getHexArray/getSplit/getCount
+	 * expose the hex keys to other classes. Index based counting (Utils.splitBitsets) is in
+	 * OffHeapSplitCounts, QuartetCounts and TripletCounts, and the TaxonDictionary lets addForest
+	 * check the taxon set once per forest rather than once per tree.
+	 */
+	private void addTree(Tree tree, int weight, boolean checkTaxa) {
+		if (weight<1) throw new IllegalArgumentException("Tree weight must be positive, got "+weight);
+		nTrees += weight;
 		NeoSplitSystem splitSys = NeoSplitUtils.getSplits(tree);
-		addSplitSystem__(splitSys);
+		addSplitSystem__(splitSys, weight, checkTaxa);
 	}
 	
 	/*
@@ -309,9 +363,51 @@ public class SplitCounts implements IdGroup {
 		}
 		return ica;
 	}
-
-	
 	
+	/**
+	 * TCA for every threshold at once: tca[t] == treeCertaintyAll(t) (up to rounding) for t=0..nTrees.
+	 * 
+	 * One pass finds every split conflicting with each greedy consensus split. As these come in
+	 * decreasing count order, lowering the threshold only appends to each list, so running
+	 * totals of list size, sum of counts and sum of count*log(count) give each ICA in O(1) per threshold.
+	 */
+	public double[] treeCertaintyAllProfile() {
+		findGreedySplits();
+		int maxCount = 0;
+		for (int count : counts.values()) maxCount = Math.max(maxCount, count);
+		int nThresholds = Math.max(nTrees, maxCount)+1;
+		double[] tca = new double[nThresholds];
+		for (int i : greedySplitIndex) {
+			String splitStr = sortedSplits.elementAt(i);
+			Split split = splits.get(splitStr);
+			int greedyCount = counts.get(splitStr);
+			// conflicting splits, in decreasing count order
+			int[] conflicts = new int[16];
+			int nConflicts = 0;
+			for (int j=i+1; j<sortedSplits.size(); j++) {
+				String otherSplitString = sortedSplits.elementAt(j);
+				if (!split.compatible(splits.get(otherSplitString))) {
+					if (nConflicts==conflicts.length) conflicts = Arrays.copyOf(conflicts, 2*nConflicts);
+					conflicts[nConflicts++] = counts.get(otherSplitString);
+				}
+			}
+			// thresholds from greedyCount down to 0, adding conflicting splits as they pass the threshold
+			int n = 1;
+			double sum = greedyCount;
+			double sumCLogC = greedyCount*Math.log(greedyCount);
+			int next = 0;
+			for (int t=greedyCount; t>=0; t--) {
+				while (next<nConflicts && conflicts[next]>=t) {
+					int c = conflicts[next++];
+					n++;
+					sum += c;
+					sumCLogC += c*Math.log(c);
+				}
+				tca[t] += internodeCertainty(n, sum, sumCLogC);
+			}
+		}
+		return tca;
+	}
 	
 	/*
 	 * If thresholdIsLength is true, threshold = max number of splits to consider. (Use 2 to 
@@ -366,6 +462,15 @@ public class SplitCounts implements IdGroup {
 		return ic;
 	}
 
+	/*
+	 * As internodeCertainty(DoubleList) for n splits whose counts c_i have sum 'sum' and
+	 * sum of c_i*log(c_i) 'sumCLogC', using sum_i p_i log(p_i) = sumCLogC/sum - log(sum).
+	 */
+	static double internodeCertainty(int n, double sum, double sumCLogC) {
+		if (n<=1) return 1;
+		return 1 + (sumCLogC/sum - Math.log(sum))/Math.log(n);
+	}
+
 	
 	/**
 	 * 
@@ -0,0 +1,28 @@
+package hybridstats;
+
+import java.util.Set;
+
+/**
+ * A summary statistic of a Forest, computed from shared intermediate structures.
+ *
+ * Implementations declare the structures they need, so StatsScheduler can build each one once
+ * (however many statistics use it) before running the statistics themselves in parallel.
+ * compute() may be called concurrently with other statistics' compute(), so must only read
+ * from the context's structures.
+ *
+ * Register custom statistics with StatisticRegistry.register(), after which they can be named
+ * in CompoundStats and HybridStats.getStatByName().
+ *
+ * @author woodhams
+ *
+ */
+public interface Statistic {
+	/**
+	 * Short name, as used in output column headings and CompoundStat formulae, e.g. "TE".
+	 */
+	public String getName();
+
+	public Set<StatsContext.Requirement> getRequirements();
+
+	public double compute(StatsContext context);
+}
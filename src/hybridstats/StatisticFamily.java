@@ -0,0 +1,16 @@
+package hybridstats;
+
+/**
+ * A family of statistics with an integer parameter, named prefix+parameter, e.g. "RS2", "SI-1".
+ *
+ * @author woodhams
+ *
+ */
+public interface StatisticFamily {
+	public String getPrefix();
+
+	/**
+	 * @return the member of the family with this parameter
+	 */
+	public Statistic instance(int parameter);
+}
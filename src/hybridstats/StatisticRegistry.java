@@ -0,0 +1,210 @@
+package hybridstats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import hybridstats.StatsContext.Requirement;
+
+/**
+ * Statistics by name: the standard HybridStats statistics, the RS# and SI-# families, and any
+ * registered custom statistics.
+ *
+ * Statistics registered as columns are the ones HybridStats calculates and reports for every forest,
+ * so a new standard statistic needs only registering here.
+ *
+ * @author woodhams
+ *
+ */
+public class StatisticRegistry {
+	private static final LinkedHashMap<String,Statistic> statistics = new LinkedHashMap<String,Statistic>();
+	private static final LinkedHashMap<String,StatisticFamily> families = new LinkedHashMap<String,StatisticFamily>();
+	private static final List<Column> columns = new ArrayList<Column>();
+
+	/**
+	 * How a column statistic is treated under a HybridStats time budget. CHEAP statistics are always
+	 * calculated, first. The others are calculated while time allows: MODERATE ones, then SI-#
+	 * thresholds, then EXPENSIVE ones.
+	 */
+	public enum Cost { CHEAP, MODERATE, EXPENSIVE }
+
+	/**
+	 * A statistic which HybridStats calculates for every forest and reports (human friendly
+	 * as "description = value", R friendly as a column headed by its name, printed with 'format'.)
+	 */
+	public static class Column {
+		public final Statistic statistic;
+		public final String description;
+		public final String format;
+		public final Cost cost;
+
+		Column(Statistic statistic, String description, String format, Cost cost) {
+			this.statistic = statistic;
+			this.description = description;
+			this.format = format;
+			this.cost = cost;
+		}
+
+		public String getName() {
+			return statistic.getName();
+		}
+	}
+
+	/*
+	 * A statistic with fixed name and requirements
+	 */
+	private static abstract class SimpleStatistic implements Statistic {
+		private final String name;
+		private final Set<Requirement> requirements;
+		SimpleStatistic(String name, Set<Requirement> requirements) {
+			this.name = name;
+			this.requirements = requirements;
+		}
+		public String getName() { return name; }
+		public Set<Requirement> getRequirements() { return requirements; }
+	}
+
+	private static final Set<Requirement> TOPOLOGY = EnumSet.of(Requirement.TOPOLOGY_COUNTS);
+	private static final Set<Requirement> SPLITS = EnumSet.of(Requirement.SPLIT_COUNTS);
+	private static final Set<Requirement> QUARTETS = EnumSet.of(Requirement.QUARTET_COUNTS);
+	private static final Set<Requirement> TRIPLETS = EnumSet.of(Requirement.TRIPLET_COUNTS);
+	private static final Set<Requirement> GREEDY = EnumSet.of(Requirement.SPLIT_COUNTS, Requirement.GREEDY_CONSENSUS);
+
+	static {
+		// The standard statistics, as columns in R friendly output in this order
+		registerColumn(new SimpleStatistic("TE", TOPOLOGY) {
+			public double compute(StatsContext context) {
+				return HybridStats.entropy(context.getTopologyCounts().getCounts());
+			}
+		}, "Topology entropy", "%7.3f", Cost.CHEAP);
+		registerColumn(new SimpleStatistic("SI", SPLITS) {
+			public double compute(StatsContext context) {
+				return context.getSplitCounts().weightedPairwiseSplitIncompatibility();
+			}
+		}, "Total pairwise split incompatibility", "%.0f", Cost.MODERATE);
+		registerColumn(new SimpleStatistic("DC", SPLITS) {
+			public double compute(StatsContext context) {
+				return context.getSplitCounts().sumRFtoMajRuleTree();
+			}
+		}, "Sum diff Robinson Foulds distance to majority rule tree", "%.0f", Cost.CHEAP);
+		registerColumn(new SimpleStatistic("UC", SPLITS) {
+			public double compute(StatsContext context) {
+				return context.getSplitCounts().numUniqueCherries();
+			}
+		}, "Number of unique cherries", "%.0f", Cost.CHEAP);
+		registerColumn(new SimpleStatistic("US", SPLITS) {
+			public double compute(StatsContext context) {
+				return context.getSplitCounts().numUniqueSplits();
+			}
+		}, "Number of unique non-trivial splits observed", "%.0f", Cost.CHEAP);
+		registerColumn(new SimpleStatistic("QE", QUARTETS) {
+			public double compute(StatsContext context) {
+				QuartetCounts counts = context.getQuartetCounts();
+				// If cut short by the deadline, this is the entropy of the trees counted: the most frequent
+				// unique topologies, with their weights (see StatsContext.getQuartetCounts.)
+				if (counts.getNumberTrees()==0) return Double.NaN;
+				return counts.entropy();
+			}
+		}, "Quartet entropy", "%5.3f", Cost.EXPENSIVE);
+		registerColumn(new SimpleStatistic("TC", GREEDY) {
+			public double compute(StatsContext context) {
+				return context.getGreedyConsensusSplitCounts().treeCertainty();
+			}
+		}, "Tree certainty", "%5.3f", Cost.MODERATE);
+		registerColumn(new SimpleStatistic("TCA", GREEDY) {
+			public double compute(StatsContext context) {
+				return context.getGreedyConsensusSplitCounts().treeCertaintyAll(0); // Possible TODO: use a suitable threshold instead of 0.
+			}
+		}, "Tree certainty all", "%5.3f", Cost.MODERATE);
+		registerColumn(new SimpleStatistic("RT", TRIPLETS) {
+			public double compute(StatsContext context) {
+				TripletCounts counts = context.getTripletCounts();
+				// as QE
+				if (counts.getNumberTrees()==0) return Double.NaN;
+				return counts.entropy();
+			}
+		}, "Rooted triplet entropy", "%5.3f", Cost.EXPENSIVE);
+		register(new StatisticFamily() {
+			public String getPrefix() { return "RS"; }
+			public Statistic instance(final int threshold) {
+				return new SimpleStatistic("RS"+threshold, SPLITS) {
+					public double compute(StatsContext context) {
+						return context.getCumulativeSplitCounts()[threshold];
+					}
+				};
+			}
+		});
+		register(new StatisticFamily() {
+			public String getPrefix() { return "SI-"; }
+			public Statistic instance(final int threshold) {
+				return new SimpleStatistic("SI-"+threshold, SPLITS) {
+					public double compute(StatsContext context) {
+						return context.getSplitCounts().weightedPairwiseSplitIncompatibility(threshold);
+					}
+				};
+			}
+		});
+	}
+
+	/**
+	 * Add a statistic. Its name must not clash with an existing statistic, nor be a family prefix followed by an integer.
+	 */
+	public static synchronized void register(Statistic statistic) {
+		String name = statistic.getName();
+		if (statistics.containsKey(name) || familyMember(name)!=null) throw new IllegalArgumentException("Statistic '"+name+"' already registered");
+		statistics.put(name, statistic);
+	}
+
+	/**
+	 * Register a statistic, and add it as the last HybridStats column.
+	 * @param format: printf format for a double, e.g. "%5.3f", or "%.0f" for integer valued statistics
+	 */
+	public static synchronized void registerColumn(Statistic statistic, String description, String format, Cost cost) {
+		register(statistic);
+		columns.add(new Column(statistic, description, format, cost));
+	}
+
+	public static synchronized void register(StatisticFamily family) {
+		if (families.containsKey(family.getPrefix())) throw new IllegalArgumentException("Statistic family '"+family.getPrefix()+"' already registered");
+		families.put(family.getPrefix(), family);
+	}
+
+	/**
+	 * @return the statistic called 'name', or null if there is none.
+	 */
+	public static synchronized Statistic lookup(String name) {
+		Statistic statistic = statistics.get(name);
+		return (statistic!=null) ? statistic : familyMember(name);
+	}
+
+	private static Statistic familyMember(String name) {
+		for (StatisticFamily family : families.values()) {
+			String prefix = family.getPrefix();
+			if (name.length()>prefix.length() && name.startsWith(prefix)) {
+				try {
+					return family.instance(Integer.parseInt(name.substring(prefix.length())));
+				} catch (NumberFormatException e) {
+					// not this family
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The HybridStats columns, in output order.
+	 */
+	public static synchronized List<Column> getColumns() {
+		return Collections.unmodifiableList(new ArrayList<Column>(columns));
+	}
+
+	/**
+	 * Names of the (non-family) statistics, in registration order.
+	 */
+	public static synchronized List<String> getNames() {
+		return Collections.unmodifiableList(new ArrayList<String>(statistics.keySet()));
+	}
+}
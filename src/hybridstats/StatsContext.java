@@ -0,0 +1,250 @@
+package hybridstats;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The intermediate structures which statistics are computed from, for one Forest.
+ * Each is built on first request, at most once, and getters are safe to call from many threads.
+ *
+ * Dependencies: the unique (weighted) forest comes from the topology counts; split, quartet and
+ * triplet counts are built from the unique forest; the greedy consensus needs split counts.
+ *
+ * A context may have a deadline (HybridStats time budget.) Quartet and triplet counts then stop counting trees when
+ * it passes (having counted the unique topologies in decreasing order of frequency), and record that they
+ * were cut short. Whoever runs the statistics (StatsScheduler) then marks those using them as degraded,
+ * with markDegradedIfCutShort, as statistics themselves only read from the context.
+ *
+ * @author woodhams
+ *
+ */
+public class StatsContext {
+	public enum Requirement {
+		TOPOLOGY_COUNTS, SPLIT_COUNTS, QUARTET_COUNTS, TRIPLET_COUNTS, GREEDY_CONSENSUS
+	}
+
+	public static final Set<Requirement> NONE = EnumSet.noneOf(Requirement.class);
+
+	private final Forest forest;
+	private final int nTrees;
+	private final Object topologyLock = new Object();
+	private final Object splitLock = new Object();
+	private final Object quartetLock = new Object();
+	private final Object tripletLock = new Object();
+	private final Object greedyLock = new Object();
+	private TreeTopologyCounts topoCounts;
+	private Forest uniqueForest;
+	private SplitCounts splitCounts;
+	private int[] cumulativeSplitCounts;
+	private QuartetCounts quartetCounts;
+	private TripletCounts tripletCounts;
+	private boolean greedyDone;
+	private int[] uniqueTreeOrder;
+	private long deadline = NO_DEADLINE;
+	private final Set<String> degraded = Collections.synchronizedSet(new LinkedHashSet<String>());
+	private final Set<Requirement> cutShort = Collections.synchronizedSet(EnumSet.noneOf(Requirement.class));
+	private static final long NO_DEADLINE = Long.MIN_VALUE;
+
+	public StatsContext(Forest forest) {
+		this.forest = forest;
+		nTrees = forest.totalWeight();
+	}
+
+	/*
+	 * For HybridStats, which builds these itself (with metrics).
+	 */
+	StatsContext(Forest forest, TreeTopologyCounts topoCounts, Forest uniqueForest, SplitCounts splitCounts) {
+		this(forest);
+		this.topoCounts = topoCounts;
+		this.uniqueForest = uniqueForest;
+		this.splitCounts = splitCounts;
+	}
+
+	/*
+	 * System.nanoTime() value after which outOfTime() is true.
+	 */
+	void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	public boolean outOfTime() {
+		return deadline!=NO_DEADLINE && System.nanoTime()-deadline>0;
+	}
+
+	/**
+	 * Record that statistic 'name' is missing or approximate because the deadline passed.
+	 */
+	public void markDegraded(String name) {
+		degraded.add(name);
+	}
+
+	public boolean isDegraded(String name) {
+		return degraded.contains(name);
+	}
+
+	/**
+	 * True if structure 'requirement' was cut short by the deadline (so counts fewer than getNumberTrees() trees.)
+	 */
+	public boolean isCutShort(Requirement requirement) {
+		return cutShort.contains(requirement);
+	}
+
+	/**
+	 * Mark 'stat' degraded if any structure it requires was cut short. Call after computing it.
+	 */
+	public void markDegradedIfCutShort(Statistic stat) {
+		for (Requirement requirement : stat.getRequirements()) {
+			if (isCutShort(requirement)) markDegraded(stat.getName());
+		}
+	}
+
+	/**
+	 * Names passed to markDegraded, in order.
+	 */
+	public Set<String> getDegraded() {
+		synchronized (degraded) {
+			return Collections.unmodifiableSet(new LinkedHashSet<String>(degraded));
+		}
+	}
+
+	public Forest getForest() {
+		return forest;
+	}
+
+	/**
+	 * Total tree weight
+	 */
+	public int getNumberTrees() {
+		return nTrees;
+	}
+
+	public int getNumberTaxa() {
+		return forest.get(0).getIdCount();
+	}
+
+	public TreeTopologyCounts getTopologyCounts() {
+		synchronized (topologyLock) {
+			if (topoCounts==null) topoCounts = new TreeTopologyCounts(forest);
+			return topoCounts;
+		}
+	}
+
+	/**
+	 * One tree per unique topology, weighted by multiplicity. See TreeTopologyCounts.toWeightedForest()
+	 */
+	public Forest getUniqueForest() {
+		synchronized (topologyLock) {
+			if (uniqueForest==null) uniqueForest = getTopologyCounts().toWeightedForest();
+			return uniqueForest;
+		}
+	}
+
+	/**
+	 * Indices of the unique forest's trees in order of decreasing weight (ties in forest order), so that
+	 * counting cut short by the deadline has counted as many trees as possible.
+	 */
+	public int[] getUniqueTreeOrder() {
+		final Forest unique = getUniqueForest();
+		synchronized (topologyLock) {
+			if (uniqueTreeOrder==null) {
+				Integer[] order = new Integer[unique.size()];
+				for (int i=0; i<order.length; i++) order[i] = i;
+				Arrays.sort(order, new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						return unique.getWeight(b)-unique.getWeight(a);
+					}
+				});
+				uniqueTreeOrder = new int[order.length];
+				for (int i=0; i<order.length; i++) uniqueTreeOrder[i] = order[i];
+			}
+			return uniqueTreeOrder;
+		}
+	}
+
+	public SplitCounts getSplitCounts() {
+		Forest unique = getUniqueForest();
+		synchronized (splitLock) {
+			if (splitCounts==null) splitCounts = new SplitCounts(unique);
+			return splitCounts;
+		}
+	}
+
+	/**
+	 * c[i] = number of splits present in fewer than i trees (the RS# statistics).
+	 */
+	public int[] getCumulativeSplitCounts() {
+		SplitCounts counts = getSplitCounts();
+		synchronized (splitLock) {
+			if (cumulativeSplitCounts==null) cumulativeSplitCounts = HybridStats.cumulativeSplitCounts(counts);
+			return cumulativeSplitCounts;
+		}
+	}
+
+	/**
+	 * If the deadline passed while counting, these count fewer than getNumberTrees() trees.
+	 */
+	public QuartetCounts getQuartetCounts() {
+		Forest unique = getUniqueForest();
+		int[] order = getUniqueTreeOrder();
+		synchronized (quartetLock) {
+			if (quartetCounts==null) {
+				quartetCounts = new QuartetCounts(Utils.taxonOrder(unique));
+				for (int tree : order) {
+					if (outOfTime()) break;
+					quartetCounts.addTree(unique.get(tree), unique.getWeight(tree));
+				}
+				if (quartetCounts.getNumberTrees()<nTrees) cutShort.add(Requirement.QUARTET_COUNTS);
+			}
+			return quartetCounts;
+		}
+	}
+
+	/**
+	 * As getQuartetCounts, cut short by the deadline.
+	 */
+	public TripletCounts getTripletCounts() {
+		Forest unique = getUniqueForest();
+		int[] order = getUniqueTreeOrder();
+		synchronized (tripletLock) {
+			if (tripletCounts==null) {
+				tripletCounts = new TripletCounts(Utils.taxonOrder(unique));
+				for (int tree : order) {
+					if (outOfTime()) break;
+					tripletCounts.addTree(unique.get(tree), unique.getWeight(tree));
+				}
+				if (tripletCounts.getNumberTrees()<nTrees) cutShort.add(Requirement.TRIPLET_COUNTS);
+			}
+			return tripletCounts;
+		}
+	}
+
+	/**
+	 * Split counts with their greedy consensus tree already found, so that TC, TCA etc. can
+	 * read them concurrently. (SplitCounts caches the greedy consensus lazily, which is not thread safe.)
+	 */
+	public SplitCounts getGreedyConsensusSplitCounts() {
+		SplitCounts counts = getSplitCounts();
+		synchronized (greedyLock) {
+			if (!greedyDone) {
+				counts.greedyConsensusTree(false);
+				greedyDone = true;
+			}
+			return counts;
+		}
+	}
+
+	/**
+	 * Build the structures in 'requirements' (and those they depend on.)
+	 */
+	public void prepare(Set<Requirement> requirements) {
+		if (requirements.contains(Requirement.TOPOLOGY_COUNTS)) getTopologyCounts();
+		if (requirements.contains(Requirement.SPLIT_COUNTS)) getSplitCounts();
+		if (requirements.contains(Requirement.QUARTET_COUNTS)) getQuartetCounts();
+		if (requirements.contains(Requirement.TRIPLET_COUNTS)) getTripletCounts();
+		if (requirements.contains(Requirement.GREEDY_CONSENSUS)) getGreedyConsensusSplitCounts();
+	}
+}
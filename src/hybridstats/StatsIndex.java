@@ -0,0 +1,339 @@
+package hybridstats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Nearest neighbour index over CompoundStat vectors of simulated data sets, for ABC
+ * acceptance of the k simulations closest to the observed data.
+ *
+ * Each CompoundStat is one coordinate, scaled by 1/stdev, so distances are
+ * in the same units as AbcRejection.distances.
+ *
+ * A k-d tree (median splits on the coordinate of widest spread, small leaf buckets) is built
+ * over most points; points inserted since the last build are held in a tail which is scanned linearly.
+ * The tree is rebuilt when the tail grows past a fraction of the tree, so inserts cost
+ * amortized O(log n) and queries stay sublinear for low dimensional stat vectors.
+ *
+ * Not thread safe.
+ *
+ * @author woodhams
+ *
+ */
+public class StatsIndex {
+	private static final int LEAF_SIZE = 8;
+	private static final int MIN_TAIL = 256;
+
+	private final List<CompoundStat> compoundStats;
+	private final int dim;
+	private final double[] scale; // 1/stdev per coordinate
+	private double[] coords; // scaled, dim per point
+	private int size;
+	// k-d tree over points perm[0..built). Node over perm[lo..hi) splits at mid=(lo+hi)>>>1 on splitDim[mid].
+	private int[] perm;
+	private int[] splitDim;
+	private int built;
+
+	public StatsIndex(SummaryStatParameters params) {
+		this(toList(params.compoundStatIterator()));
+	}
+
+	public StatsIndex(List<CompoundStat> compoundStats) {
+		this.compoundStats = new ArrayList<CompoundStat>(compoundStats);
+		dim = compoundStats.size();
+		if (dim==0) throw new IllegalArgumentException("Need at least one compound stat");
+		scale = new double[dim];
+		for (int k=0; k<dim; k++) {
+			double error = compoundStats.get(k).getError();
+			if (!(error>0)) throw new IllegalArgumentException("Compound stat '"+compoundStats.get(k).getName()+"' needs a positive stdev");
+			scale[k] = 1/error;
+		}
+		coords = new double[16*dim];
+		size = 0;
+		perm = new int[0];
+		splitDim = new int[0];
+		built = 0;
+	}
+
+	private static List<CompoundStat> toList(Iterator<CompoundStat> iter) {
+		ArrayList<CompoundStat> list = new ArrayList<CompoundStat>();
+		while (iter.hasNext()) list.add(iter.next());
+		return list;
+	}
+
+	/**
+	 * Compound stat values of 'stats', unscaled.
+	 */
+	public double[] values(HybridStats stats) {
+		double[] values = new double[dim];
+		for (int k=0; k<dim; k++) values[k] = compoundStats.get(k).evaluate(stats);
+		return values;
+	}
+
+	/**
+	 * @return id of the new point: ids are consecutive from 0, in insertion order.
+	 */
+	public int add(HybridStats stats) {
+		return add(values(stats));
+	}
+
+	/**
+	 * @param values: unscaled compound stat values, in compound stat order
+	 * @return id of the new point
+	 */
+	public int add(double[] values) {
+		if (values.length!=dim) throw new IllegalArgumentException("Expected "+dim+" values, got "+values.length);
+		if ((size+1)*dim>coords.length) coords = Arrays.copyOf(coords, 2*coords.length);
+		for (int k=0; k<dim; k++) coords[size*dim+k] = values[k]*scale[k];
+		size++;
+		if (size-built>Math.max(MIN_TAIL, built/4)) rebuild();
+		return size-1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return unscaled compound stat values of point 'id'
+	 */
+	public double[] getValues(int id) {
+		double[] values = new double[dim];
+		for (int k=0; k<dim; k++) values[k] = coords[id*dim+k]/scale[k];
+		return values;
+	}
+
+	/**
+	 * Distance (in stdev units) between point 'id' and unscaled 'values'
+	 */
+	public double distance(int id, double[] values) {
+		return Math.sqrt(distance2(id, scaled(values)));
+	}
+
+	public int[] nearest(HybridStats observed, int k) {
+		return nearest(values(observed), k);
+	}
+
+	/**
+	 * @return ids of the (up to) k points nearest 'values', nearest first.
+	 */
+	public int[] nearest(double[] values, int k) {
+		if (k<1) throw new IllegalArgumentException("k must be positive");
+		double[] query = scaled(values);
+		Neighbours neighbours = new Neighbours(Math.min(k, size));
+		if (neighbours.capacity==0) return new int[0];
+		searchNearest(query, 0, built, neighbours);
+		for (int i=built; i<size; i++) neighbours.offer(i, distance2(i, query));
+		return neighbours.sortedIds();
+	}
+
+	public int[] withinRadius(HybridStats observed, double radius) {
+		return withinRadius(values(observed), radius);
+	}
+
+	/**
+	 * @param radius: in stdev units
+	 * @return ids (ascending) of all points within 'radius' of 'values'
+	 */
+	public int[] withinRadius(double[] values, double radius) {
+		double[] query = scaled(values);
+		double r2 = radius*radius;
+		int[] found = new int[16];
+		int nFound = 0;
+		int[] stack = new int[128];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = built;
+		while (top>0) {
+			int hi = stack[--top];
+			int lo = stack[--top];
+			if (hi-lo<=LEAF_SIZE) {
+				for (int i=lo; i<hi; i++) {
+					if (distance2(perm[i], query)<=r2) {
+						if (nFound==found.length) found = Arrays.copyOf(found, 2*nFound);
+						found[nFound++] = perm[i];
+					}
+				}
+				continue;
+			}
+			int mid = (lo+hi)>>>1;
+			int d = splitDim[mid];
+			double diff = query[d]-coords[perm[mid]*dim+d];
+			if (distance2(perm[mid], query)<=r2) {
+				if (nFound==found.length) found = Arrays.copyOf(found, 2*nFound);
+				found[nFound++] = perm[mid];
+			}
+			if (top+4>stack.length) stack = Arrays.copyOf(stack, 2*stack.length);
+			if (diff<=radius) { stack[top++] = lo; stack[top++] = mid; }
+			if (diff>=-radius) { stack[top++] = mid+1; stack[top++] = hi; }
+		}
+		for (int i=built; i<size; i++) {
+			if (distance2(i, query)<=r2) {
+				if (nFound==found.length) found = Arrays.copyOf(found, 2*nFound);
+				found[nFound++] = i;
+			}
+		}
+		int[] result = Arrays.copyOf(found, nFound);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private double[] scaled(double[] values) {
+		if (values.length!=dim) throw new IllegalArgumentException("Expected "+dim+" values, got "+values.length);
+		double[] query = new double[dim];
+		for (int k=0; k<dim; k++) query[k] = values[k]*scale[k];
+		return query;
+	}
+
+	private double distance2(int id, double[] query) {
+		int base = id*dim;
+		double sum = 0;
+		for (int k=0; k<dim; k++) {
+			double d = coords[base+k]-query[k];
+			sum += d*d;
+		}
+		return sum;
+	}
+
+	private void searchNearest(double[] query, int lo, int hi, Neighbours neighbours) {
+		if (hi-lo<=LEAF_SIZE) {
+			for (int i=lo; i<hi; i++) neighbours.offer(perm[i], distance2(perm[i], query));
+			return;
+		}
+		int mid = (lo+hi)>>>1;
+		int d = splitDim[mid];
+		double diff = query[d]-coords[perm[mid]*dim+d];
+		neighbours.offer(perm[mid], distance2(perm[mid], query));
+		// near side first, then the far side only if it could hold something closer
+		if (diff<=0) {
+			searchNearest(query, lo, mid, neighbours);
+			if (diff*diff<=neighbours.bound()) searchNearest(query, mid+1, hi, neighbours);
+		} else {
+			searchNearest(query, mid+1, hi, neighbours);
+			if (diff*diff<=neighbours.bound()) searchNearest(query, lo, mid, neighbours);
+		}
+	}
+
+	/*
+	 * Rebuild the k-d tree over all points.
+	 */
+	private void rebuild() {
+		perm = new int[size];
+		for (int i=0; i<size; i++) perm[i] = i;
+		splitDim = new int[size];
+		build(0, size);
+		built = size;
+	}
+
+	private void build(int lo, int hi) {
+		if (hi-lo<=LEAF_SIZE) return;
+		// split on the coordinate of widest spread
+		int bestDim = 0;
+		double bestSpread = -1;
+		for (int k=0; k<dim; k++) {
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			for (int i=lo; i<hi; i++) {
+				double x = coords[perm[i]*dim+k];
+				if (x<min) min = x;
+				if (x>max) max = x;
+			}
+			if (max-min>bestSpread) {
+				bestSpread = max-min;
+				bestDim = k;
+			}
+		}
+		int mid = (lo+hi)>>>1;
+		select(lo, hi-1, mid, bestDim);
+		splitDim[mid] = bestDim;
+		build(lo, mid);
+		build(mid+1, hi);
+	}
+
+	/*
+	 * Quickselect: reorder perm[lo..hi] so perm[k] has the k-th smallest coordinate d,
+	 * with nothing larger before it and nothing smaller after it.
+	 */
+	private void select(int lo, int hi, int k, int d) {
+		while (hi>lo) {
+			double pivot = coords[perm[(lo+hi)>>>1]*dim+d];
+			int i = lo, j = hi;
+			while (i<=j) {
+				while (coords[perm[i]*dim+d]<pivot) i++;
+				while (coords[perm[j]*dim+d]>pivot) j--;
+				if (i<=j) {
+					int temp = perm[i]; perm[i] = perm[j]; perm[j] = temp;
+					i++; j--;
+				}
+			}
+			if (k<=j) {
+				hi = j;
+			} else if (k>=i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Bounded max-heap of (squared distance, id): the best 'capacity' seen so far.
+	 */
+	private static class Neighbours {
+		final int capacity;
+		final double[] dist2;
+		final int[] ids;
+		int n;
+
+		Neighbours(int capacity) {
+			this.capacity = capacity;
+			dist2 = new double[capacity];
+			ids = new int[capacity];
+			n = 0;
+		}
+
+		double bound() {
+			return (n<capacity) ? Double.POSITIVE_INFINITY : dist2[0];
+		}
+
+		void offer(int id, double d2) {
+			if (n<capacity) {
+				int pos = n++;
+				while (pos>0 && dist2[(pos-1)/2]<d2) {
+					dist2[pos] = dist2[(pos-1)/2];
+					ids[pos] = ids[(pos-1)/2];
+					pos = (pos-1)/2;
+				}
+				dist2[pos] = d2;
+				ids[pos] = id;
+			} else if (d2<dist2[0]) {
+				int pos = 0;
+				while (true) {
+					int child = 2*pos+1;
+					if (child>=n) break;
+					if (child+1<n && dist2[child+1]>dist2[child]) child++;
+					if (dist2[child]<=d2) break;
+					dist2[pos] = dist2[child];
+					ids[pos] = ids[child];
+					pos = child;
+				}
+				dist2[pos] = d2;
+				ids[pos] = id;
+			}
+		}
+
+		int[] sortedIds() {
+			Integer[] order = new Integer[n];
+			for (int i=0; i<n; i++) order[i] = i;
+			Arrays.sort(order, new java.util.Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Double.compare(dist2[a], dist2[b]);
+				}
+			});
+			int[] result = new int[n];
+			for (int i=0; i<n; i++) result[i] = ids[order[i]];
+			return result;
+		}
+	}
+}
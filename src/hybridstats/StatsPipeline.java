@@ -0,0 +1,307 @@
+package hybridstats;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import palExtensions.ExtRandom;
+
+/**
+ * Computes HybridStats for a batch of Nexus files as a pipeline of concurrent stages:
+ *
+ * reader (1 thread) -> parsers (nParsers) -> statistics workers (nWorkers) -> ordered writer (1 thread)
+ *
+ * with a bounded queue between each pair of stages, so a slow stage holds back (rather than
+ * being flooded by) the stages feeding it, and throughput is set by the slowest stage.
+ * The writer holds back results which are ready before earlier ones, so the reader also waits
+ * while the oldest unwritten dataset is a window of datasets behind, which bounds memory even
+ * when one dataset is much slower than those after it.
+ * Rows are written in R friendly format, in input order. Greedy consensus ties are broken by an RNG
+ * seeded with the file's position in the batch, so output is the same from run to run.
+ *
+ * @author woodhams
+ *
+ */
+public class StatsPipeline {
+	private final int queueCapacity;
+	private final int nParsers;
+	private final int nWorkers;
+	private volatile Stage[] stages; // metrics of the current (or last) run
+	private static final String[] STAGE_NAMES = {"read", "parse", "stats", "write"};
+
+	/*
+	 * A dataset passing through the pipeline. Exactly one of bytes, forest, stats is set,
+	 * depending on stage, unless there was an error.
+	 */
+	private static class Item {
+		static final Item END = new Item(-1, null);
+		final int seq;
+		final String filename;
+		byte[] bytes;
+		Forest forest;
+		HybridStats stats;
+		Throwable error;
+		Item(int seq, String filename) {
+			this.seq = seq;
+			this.filename = filename;
+		}
+	}
+
+	/*
+	 * Per stage metrics. Queue depth is that of the stage's input queue, sampled at each take.
+	 */
+	private static class Stage {
+		final String name;
+		final AtomicLong busyNanos = new AtomicLong();
+		final AtomicInteger items = new AtomicInteger();
+		final AtomicInteger maxQueueDepth = new AtomicInteger();
+		final AtomicLong sumQueueDepth = new AtomicLong();
+		final AtomicInteger queueSamples = new AtomicInteger();
+		Stage(String name) {
+			this.name = name;
+		}
+		void sampleQueue(BlockingQueue<Item> queue) {
+			int depth = queue.size();
+			sumQueueDepth.addAndGet(depth);
+			queueSamples.incrementAndGet();
+			int max;
+			while (depth>(max=maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {}
+		}
+	}
+
+	public StatsPipeline() {
+		this(16, Math.max(1, Runtime.getRuntime().availableProcessors()/2), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param queueCapacity: capacity of each inter-stage queue
+	 * @param nParsers: number of Nexus parsing threads
+	 * @param nWorkers: number of HybridStats calculating threads
+	 */
+	public StatsPipeline(int queueCapacity, int nParsers, int nWorkers) {
+		if (queueCapacity<1 || nParsers<1 || nWorkers<1) throw new IllegalArgumentException("Pipeline sizes must be positive");
+		this.queueCapacity = queueCapacity;
+		this.nParsers = nParsers;
+		this.nWorkers = nWorkers;
+		stages = newStages();
+	}
+
+	private static Stage[] newStages() {
+		Stage[] stages = new Stage[STAGE_NAMES.length];
+		for (int i=0; i<stages.length; i++) stages[i] = new Stage(STAGE_NAMES[i]);
+		return stages;
+	}
+
+	/**
+	 * Process 'filenames', writing R friendly headings then one row per file, in order.
+	 * Files which fail to read or parse are reported on System.err and get a row of NA values,
+	 * so row i is always file i.
+	 * @return number of rows of statistics written (not counting NA rows)
+	 */
+	public int run(List<String> filenames, boolean useLineageTrees,
+			SummaryStatParameters params, PrintWriter out) throws InterruptedException {
+		return run(filenames, Main.treesBlockRegex(useLineageTrees), params, out);
+	}
+
+	/**
+	 * As above, reading the trees block whose first comment matches 'treesBlockRegex' (see Main.readTreesFromFile)
+	 */
+	public int run(final List<String> filenames, final String treesBlockRegex,
+			final SummaryStatParameters params, final PrintWriter out) throws InterruptedException {
+		final Stage[] stages = newStages();
+		this.stages = stages;
+		final BlockingQueue<Item> toParse = new ArrayBlockingQueue<Item>(queueCapacity);
+		final BlockingQueue<Item> toStats = new ArrayBlockingQueue<Item>(queueCapacity);
+		final BlockingQueue<Item> toWrite = new ArrayBlockingQueue<Item>(queueCapacity);
+		final AtomicInteger activeParsers = new AtomicInteger(nParsers);
+		final AtomicInteger activeWorkers = new AtomicInteger(nWorkers);
+		final AtomicInteger nWritten = new AtomicInteger();
+		// datasets read but not yet written: released by the writer
+		final Semaphore window = new Semaphore(windowSize());
+		ExecutorService pool = Executors.newFixedThreadPool(nParsers+nWorkers+2);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		futures.add(pool.submit(new StageTask(stages[0]) {
+			void work() throws InterruptedException {
+				for (int seq=0; seq<filenames.size(); seq++) {
+					window.acquire();
+					Item item = new Item(seq, filenames.get(seq));
+					long start = System.nanoTime();
+					try {
+						item.bytes = readFile(item.filename);
+					} catch (IOException e) {
+						item.error = e;
+					}
+					stage.busyNanos.addAndGet(System.nanoTime()-start);
+					stage.items.incrementAndGet();
+					toParse.put(item);
+				}
+				for (int i=0; i<nParsers; i++) toParse.put(Item.END);
+			}
+		}));
+		for (int p=0; p<nParsers; p++) {
+			futures.add(pool.submit(new StageTask(stages[1]) {
+				void work() throws InterruptedException {
+					while (true) {
+						stage.sampleQueue(toParse);
+						Item item = toParse.take();
+						if (item==Item.END) break;
+						long start = System.nanoTime();
+						if (item.error==null) {
+							try {
+								item.forest = Main.readTreesFromStream(
+										CompressedInput.open(new ByteArrayInputStream(item.bytes), 1), treesBlockRegex, PhaseMetrics.DISABLED);
+							} catch (Exception e) {
+								item.error = e;
+							}
+						}
+						item.bytes = null;
+						stage.busyNanos.addAndGet(System.nanoTime()-start);
+						stage.items.incrementAndGet();
+						toStats.put(item);
+					}
+					// last parser out tells the workers
+					if (activeParsers.decrementAndGet()==0) {
+						for (int i=0; i<nWorkers; i++) toStats.put(Item.END);
+					}
+				}
+			}));
+		}
+		for (int w=0; w<nWorkers; w++) {
+			futures.add(pool.submit(new StageTask(stages[2]) {
+				void work() throws InterruptedException {
+					while (true) {
+						stage.sampleQueue(toStats);
+						Item item = toStats.take();
+						if (item==Item.END) break;
+						long start = System.nanoTime();
+						if (item.error==null) {
+							try {
+								// own tie break RNG per dataset, so rows don't depend on which worker ran first
+								item.stats = new HybridStats(item.forest, params, new ExtRandom(item.seq), PhaseMetrics.DISABLED);
+							} catch (RuntimeException e) {
+								item.error = e;
+							}
+						}
+						item.forest = null;
+						stage.busyNanos.addAndGet(System.nanoTime()-start);
+						stage.items.incrementAndGet();
+						toWrite.put(item);
+					}
+					if (activeWorkers.decrementAndGet()==0) toWrite.put(Item.END);
+				}
+			}));
+		}
+		futures.add(pool.submit(new StageTask(stages[3]) {
+			void work() throws InterruptedException {
+				HybridStats.printRFriendlyHeadings(out, params);
+				// items arrive out of order: hold them until their turn
+				HashMap<Integer,Item> pending = new HashMap<Integer,Item>();
+				int next = 0;
+				while (true) {
+					stage.sampleQueue(toWrite);
+					Item item = toWrite.take();
+					if (item==Item.END) break;
+					pending.put(item.seq, item);
+					long start = System.nanoTime();
+					while (pending.containsKey(next)) {
+						Item ready = pending.remove(next++);
+						if (ready.error!=null) {
+							System.err.printf("No statistics (NA row %d) for %s: %s\n", ready.seq+1, ready.filename, ready.error);
+							HybridStats.printRFriendlyMissing(out, params);
+						} else {
+							ready.stats.printRFriendly(out, params, false);
+							nWritten.incrementAndGet();
+						}
+						stage.items.incrementAndGet();
+						window.release();
+					}
+					stage.busyNanos.addAndGet(System.nanoTime()-start);
+				}
+				out.flush();
+			}
+		}));
+
+		pool.shutdown();
+		try {
+			for (Future<?> future : futures) future.get();
+		} catch (java.util.concurrent.ExecutionException e) {
+			pool.shutdownNow();
+			throw new RuntimeException("Pipeline stage failed", e.getCause());
+		}
+		pool.awaitTermination(1, TimeUnit.MINUTES);
+		return nWritten.get();
+	}
+
+	/*
+	 * Maximum number of datasets between reader and writer: enough to fill every queue and thread,
+	 * so the window only holds the reader back when results are waiting for an earlier one.
+	 */
+	private int windowSize() {
+		return 3*queueCapacity+nParsers+nWorkers;
+	}
+
+	/*
+	 * Body of one stage thread
+	 */
+	private static abstract class StageTask implements java.util.concurrent.Callable<Void> {
+		final Stage stage;
+		StageTask(Stage stage) {
+			this.stage = stage;
+		}
+		abstract void work() throws InterruptedException;
+		public Void call() throws InterruptedException {
+			work();
+			return null;
+		}
+	}
+
+	private static byte[] readFile(String filename) throws IOException {
+		File file = new File(filename);
+		long length = file.length();
+		if (length>Integer.MAX_VALUE) throw new IOException("File too large: "+filename);
+		byte[] bytes = new byte[(int)length];
+		InputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset<bytes.length) {
+				int n = in.read(bytes, offset, bytes.length-offset);
+				if (n<0) throw new IOException("Unexpected end of file "+filename);
+				offset += n;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Print per stage metrics of the last run, as '#' prefixed tab delimited lines
+	 * (in the style of PhaseMetrics.printTrailer): items processed, total busy time over
+	 * all threads of the stage, and mean and maximum depth of the stage's input queue.
+	 */
+	public void printMetrics(PrintWriter out) {
+		out.printf("%sstage\tname\titems\tbusy_ns\tmean_queue\tmax_queue\n", PhaseMetrics.TRAILER_PREFIX);
+		for (Stage stage : stages) {
+			int samples = stage.queueSamples.get();
+			out.printf("%sstage\t%s\t%d\t%d\t%.2f\t%d\n", PhaseMetrics.TRAILER_PREFIX, stage.name, stage.items.get(),
+					stage.busyNanos.get(), (samples==0) ? 0.0 : ((double)stage.sumQueueDepth.get())/samples,
+					stage.maxQueueDepth.get());
+		}
+	}
+}
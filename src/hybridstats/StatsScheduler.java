@@ -0,0 +1,162 @@
+package hybridstats;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import hybridstats.StatsContext.Requirement;
+
+/**
+ * Computes a set of statistics of one Forest: first builds every shared structure they
+ * require, once each (split, quartet and triplet counts concurrently), then runs the statistics
+ * in parallel.
+ *
+ * A scheduler keeps its thread pool (daemon threads, created on first use) between calls, and may be
+ * used by many threads at once: getShared() is the one HybridStats uses, so concurrent HybridStats
+ * (e.g. StatsPipeline workers) share its threads rather than each starting their own.
+ *
+ * @author woodhams
+ *
+ */
+public class StatsScheduler {
+	private final int nThreads;
+	private ExecutorService pool;
+	private static StatsScheduler shared;
+
+	private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "StatsScheduler");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	/**
+	 * A scheduler with one thread per processor, for general use.
+	 */
+	public static synchronized StatsScheduler getShared() {
+		if (shared==null) shared = new StatsScheduler();
+		return shared;
+	}
+
+	public StatsScheduler() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public StatsScheduler(int nThreads) {
+		if (nThreads<1) throw new IllegalArgumentException("Need at least one thread");
+		this.nThreads = nThreads;
+	}
+
+	private synchronized ExecutorService getPool() {
+		if (pool==null) pool = Executors.newFixedThreadPool(nThreads, DAEMON_THREADS);
+		return pool;
+	}
+
+	/**
+	 * Stop the pool's threads once work in progress is done. A later compute() starts a new pool.
+	 */
+	public synchronized void shutdown() {
+		if (pool!=null) pool.shutdown();
+		pool = null;
+	}
+
+	public LinkedHashMap<String,Double> compute(Forest forest, List<String> statNames) {
+		return compute(new StatsContext(forest), statNames);
+	}
+
+	/**
+	 * @param statNames: names as understood by StatisticRegistry.lookup, e.g. "TE", "RS2", "SI-1"
+	 * @return value of each statistic, in the order requested
+	 */
+	public LinkedHashMap<String,Double> compute(StatsContext context, List<String> statNames) {
+		return compute(context, statNames, false);
+	}
+
+	/**
+	 * @param skipWhenOutOfTime: if true, a statistic not yet started when the context's deadline
+	 * passes is skipped: its value is NaN and it is marked degraded.
+	 */
+	public LinkedHashMap<String,Double> compute(final StatsContext context, List<String> statNames, final boolean skipWhenOutOfTime) {
+		List<Statistic> stats = new ArrayList<Statistic>();
+		Set<Requirement> requirements = EnumSet.noneOf(Requirement.class);
+		for (String name : statNames) {
+			Statistic stat = StatisticRegistry.lookup(name);
+			if (stat==null) throw new IllegalArgumentException("Unrecognized stat name '"+name+"'");
+			stats.add(stat);
+			requirements.addAll(stat.getRequirements());
+		}
+		ExecutorService pool = getPool();
+		LinkedHashMap<String,Double> results = new LinkedHashMap<String,Double>();
+		try {
+			prepare(context, requirements, pool);
+			List<Future<Double>> futures = new ArrayList<Future<Double>>();
+			for (final Statistic stat : stats) {
+				futures.add(pool.submit(new Callable<Double>() {
+					public Double call() {
+						if (skipWhenOutOfTime && context.outOfTime()) {
+							context.markDegraded(stat.getName());
+							return Double.NaN;
+						}
+						return stat.compute(context);
+					}
+				}));
+			}
+			for (int i=0; i<stats.size(); i++) {
+				results.put(stats.get(i).getName(), futures.get(i).get());
+				context.markDegradedIfCutShort(stats.get(i));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted computing statistics", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error computing statistics", e.getCause());
+		}
+		return results;
+	}
+
+	/*
+	 * Topology counts (needed by everything else) first, then split, quartet and triplet counts
+	 * concurrently, then the greedy consensus.
+	 */
+	private void prepare(final StatsContext context, Set<Requirement> requirements, ExecutorService pool)
+			throws InterruptedException, ExecutionException {
+		if (requirements.isEmpty()) return;
+		context.getUniqueForest();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		if (requirements.contains(Requirement.SPLIT_COUNTS) || requirements.contains(Requirement.GREEDY_CONSENSUS)) {
+			futures.add(pool.submit(new Callable<Void>() {
+				public Void call() {
+					context.getSplitCounts();
+					return null;
+				}
+			}));
+		}
+		if (requirements.contains(Requirement.QUARTET_COUNTS)) {
+			futures.add(pool.submit(new Callable<Void>() {
+				public Void call() {
+					context.getQuartetCounts();
+					return null;
+				}
+			}));
+		}
+		if (requirements.contains(Requirement.TRIPLET_COUNTS)) {
+			futures.add(pool.submit(new Callable<Void>() {
+				public Void call() {
+					context.getTripletCounts();
+					return null;
+				}
+			}));
+		}
+		for (Future<?> future : futures) future.get();
+		context.prepare(requirements);
+	}
+}
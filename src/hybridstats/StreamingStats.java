@@ -0,0 +1,263 @@
+package hybridstats;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import pal.tree.Tree;
+import pal.tree.TreeParseException;
+import palExtensions.ExTreeUtils;
+import palExtensions.ExtRandom;
+
+/**
+ * Reads a stream of trees (e.g. an MCMC posterior sample) only until its statistics have converged.
+ *
+ * Trees are added to running topology and split counts. Every 'checkpointInterval' trees, the split
+ * frequencies are compared with those at the previous checkpoint: the measure is the average, over
+ * splits with frequency at least 'minFrequency' at either checkpoint, of the standard deviation of the
+ * two frequencies (as in the ASDSF of MrBayes, but between successive checkpoints of one stream.)
+ * Tracked statistics (any StatisticRegistry names; default TC and TCA) are recomputed from the running
+ * counts and compared by relative change. Reading stops once both are within tolerance at 'patience'
+ * successive checkpoints.
+ *
+ * Tracked statistics should be ones which settle down as trees are added, rather than grow (so e.g.
+ * QE, RT, TC, TCA rather than US or DC.)
+ *
+ * @author woodhams
+ *
+ */
+public class StreamingStats {
+	private final int checkpointInterval;
+	private final double splitTolerance;
+	private final double statTolerance;
+	private final int patience;
+	private int burnin = 0;
+	private double minFrequency = 0.1;
+	private long seed = 0;
+	private List<String> trackedStats = Arrays.asList("TC", "TCA");
+
+	/**
+	 * One row of the convergence history
+	 */
+	public static class Checkpoint {
+		public final int nTrees; // trees used (after burnin) at this checkpoint
+		public final double splitFrequencySD;
+		public final double maxStatChange; // largest relative change of a tracked stat
+		public final LinkedHashMap<String,Double> values;
+
+		Checkpoint(int nTrees, double splitFrequencySD, double maxStatChange, LinkedHashMap<String,Double> values) {
+			this.nTrees = nTrees;
+			this.splitFrequencySD = splitFrequencySD;
+			this.maxStatChange = maxStatChange;
+			this.values = values;
+		}
+	}
+
+	public static class Result {
+		public final boolean converged;
+		public final int treesRead;  // including burnin
+		public final int treesUsed;
+		public final Forest forest;  // the trees used, one per unique topology, weighted
+		public final List<Checkpoint> checkpoints;
+
+		Result(boolean converged, int treesRead, int treesUsed, Forest forest, List<Checkpoint> checkpoints) {
+			this.converged = converged;
+			this.treesRead = treesRead;
+			this.treesUsed = treesUsed;
+			this.forest = forest;
+			this.checkpoints = checkpoints;
+		}
+	}
+
+	/**
+	 * @param checkpointInterval: number of trees between checkpoints
+	 * @param splitTolerance: maximum average standard deviation of split frequencies between checkpoints
+	 * @param statTolerance: maximum relative change of each tracked statistic between checkpoints
+	 * @param patience: number of successive checkpoints which must be within tolerance
+	 */
+	public StreamingStats(int checkpointInterval, double splitTolerance, double statTolerance, int patience) {
+		if (checkpointInterval<1 || patience<1) throw new IllegalArgumentException("Checkpoint interval and patience must be positive");
+		this.checkpointInterval = checkpointInterval;
+		this.splitTolerance = splitTolerance;
+		this.statTolerance = statTolerance;
+		this.patience = patience;
+	}
+
+	/**
+	 * Number of trees at the start of the stream to read and discard.
+	 */
+	public void setBurnin(int burnin) {
+		this.burnin = burnin;
+	}
+
+	/**
+	 * Splits rarer than this (at both of two checkpoints) are left out of the split frequency comparison.
+	 */
+	public void setMinFrequency(double minFrequency) {
+		this.minFrequency = minFrequency;
+	}
+
+	/**
+	 * Seed for breaking greedy consensus ties (TC, TCA etc.) Every checkpoint uses a new RNG with this seed,
+	 * so values don't depend on what else has used an RNG, and ties are broken alike at successive checkpoints.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setTrackedStats(List<String> statNames) {
+		for (String name : statNames) {
+			if (StatisticRegistry.lookup(name)==null) throw new IllegalArgumentException("Unrecognized stat name '"+name+"'");
+		}
+		trackedStats = new ArrayList<String>(statNames);
+	}
+
+	/**
+	 * Read trees from 'trees' until converged or the stream ends.
+	 */
+	public Result run(Iterator<Tree> trees) {
+		TreeTopologyCounts topoCounts = new TreeTopologyCounts();
+		SplitCounts splitCounts = new SplitCounts();
+		StatsScheduler scheduler = new StatsScheduler(1);
+		List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+		HashMap<String,Double> lastFrequencies = null;
+		LinkedHashMap<String,Double> lastValues = null;
+		int nRead = 0, nUsed = 0, nGood = 0;
+		boolean converged = false;
+		// one scheduler (and thread pool) for every checkpoint
+		try {
+			while (!converged && trees.hasNext()) {
+				Tree tree = trees.next();
+				nRead++;
+				if (nRead<=burnin) continue;
+				topoCounts.addTree(tree);
+				splitCounts.addTree(tree);
+				nUsed++;
+				if (nUsed % checkpointInterval != 0) continue;
+				splitCounts.setRNG(new ExtRandom(seed));
+				HashMap<String,Double> frequencies = splitFrequencies(splitCounts, nUsed);
+				Forest unique = topoCounts.toWeightedForest();
+				LinkedHashMap<String,Double> values = scheduler.compute(new StatsContext(unique, topoCounts, unique, splitCounts), trackedStats);
+				double sd = Double.NaN, change = Double.NaN;
+				if (lastFrequencies!=null) {
+					sd = splitFrequencySD(lastFrequencies, frequencies);
+					change = maxRelativeChange(lastValues, values);
+					nGood = (sd<=splitTolerance && change<=statTolerance) ? nGood+1 : 0;
+					converged = (nGood>=patience);
+				}
+				checkpoints.add(new Checkpoint(nUsed, sd, change, values));
+				lastFrequencies = frequencies;
+				lastValues = values;
+			}
+		} finally {
+			scheduler.shutdown();
+		}
+		return new Result(converged, nRead, nUsed, topoCounts.toWeightedForest(), checkpoints);
+	}
+
+	private static HashMap<String,Double> splitFrequencies(SplitCounts splitCounts, int nTrees) {
+		HashMap<String,Double> frequencies = new HashMap<String,Double>();
+		Iterator<String> iter = splitCounts.getHexIterator();
+		while (iter.hasNext()) {
+			String hex = iter.next();
+			frequencies.put(hex, ((double)splitCounts.getCount(hex))/nTrees);
+		}
+		return frequencies;
+	}
+
+	/*
+	 * Average over splits (frequent enough at either checkpoint) of the standard deviation of the two frequencies.
+	 */
+	private double splitFrequencySD(HashMap<String,Double> previous, HashMap<String,Double> current) {
+		double sum = 0;
+		int n = 0;
+		for (Entry<String,Double> entry : current.entrySet()) {
+			double now = entry.getValue();
+			Double before = previous.get(entry.getKey());
+			double then = (before==null) ? 0 : before; // a new split
+			if (Math.max(now, then)<minFrequency) continue;
+			sum += Math.abs(now-then)/Math.sqrt(2);
+			n++;
+		}
+		// split counts only grow, so every split in 'previous' is also in 'current'
+		return (n==0) ? 0 : sum/n;
+	}
+
+	private static double maxRelativeChange(LinkedHashMap<String,Double> previous, LinkedHashMap<String,Double> current) {
+		double max = 0;
+		for (Entry<String,Double> entry : current.entrySet()) {
+			double now = entry.getValue();
+			double then = previous.get(entry.getKey());
+			double scale = Math.max(Math.abs(then), 1e-12);
+			max = Math.max(max, Math.abs(now-then)/scale);
+		}
+		return max;
+	}
+
+	/**
+	 * Trees from a Newick file, one per line, parsed only as they are requested,
+	 * so that reading stops when the consumer does. Blank lines are skipped.
+	 */
+	public static Iterator<Tree> newickTrees(final BufferedReader reader) {
+		return new Iterator<Tree>() {
+			private String nextLine = readLine();
+
+			private String readLine() {
+				try {
+					String line;
+					while ((line = reader.readLine())!=null) {
+						if (line.trim().length()>0) return line;
+					}
+					return null;
+				} catch (IOException e) {
+					throw new RuntimeException("Error reading trees", e);
+				}
+			}
+
+			public boolean hasNext() {
+				return nextLine!=null;
+			}
+
+			public Tree next() {
+				if (nextLine==null) throw new NoSuchElementException();
+				try {
+					Tree tree = ExTreeUtils.robustStringToTree(nextLine);
+					nextLine = readLine();
+					return tree;
+				} catch (TreeParseException e) {
+					throw new RuntimeException("Error parsing tree from: "+nextLine, e);
+				}
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Tab delimited convergence history, then the number of trees read and used.
+	 */
+	public static void printHistory(PrintWriter out, Result result) {
+		out.print("trees\tsplitSD\tmaxChange");
+		if (!result.checkpoints.isEmpty()) {
+			for (String name : result.checkpoints.get(0).values.keySet()) out.printf("\t%s", name);
+		}
+		out.println();
+		for (Checkpoint checkpoint : result.checkpoints) {
+			out.printf("%d\t%f\t%f", checkpoint.nTrees, checkpoint.splitFrequencySD, checkpoint.maxStatChange);
+			for (double value : checkpoint.values.values()) out.printf("\t%f", value);
+			out.println();
+		}
+		out.printf("%s after %d trees read, %d used\n", result.converged ? "Converged" : "Did not converge",
+				result.treesRead, result.treesUsed);
+	}
+}
@@ -3,9 +3,11 @@ package hybridstats;
 import java.io.PrintWriter;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Vector;
 
 import biojavaExtensions.GenericBlock;
@@ -20,15 +22,18 @@ import biojavaExtensions.GenericBlock;
 public class SummaryStatParameters {
 	public int[] siThresholds=null; // Split incompatibility thresholds. Don't use '0', that is just SI stat.
 	public int[] rsThresholds=null; // rare splits thresholds.
+	public long timeBudgetMillis=0; // per forest time budget for HybridStats. 0 for no limit.
 	private Vector<CompoundStat> compoundStats;
 	
 	// Label strings:
 	private static final String SI_THRESH = "split incompatibility thresholds";
 	private static final String RS_THRESH = "rare splits thresholds";
+	private static final String TIME_BUDGET = "time budget ms";
 	public final static Set<String> HYBRID_STATS_VALID_KEYS = new HashSet<String>(); 
 	static {
 		HYBRID_STATS_VALID_KEYS.add(SI_THRESH);
 		HYBRID_STATS_VALID_KEYS.add(RS_THRESH);
+		HYBRID_STATS_VALID_KEYS.add(TIME_BUDGET);
 	}
 
 	// Defaults:
@@ -52,6 +57,14 @@ public class SummaryStatParameters {
 			rsThresholds = parseIntSpecification(block.getValueTrimmed(RS_THRESH));
 			block.removeField(RS_THRESH);
 		}
+		if (block.hasKey(TIME_BUDGET)) {
+			try {
+				timeBudgetMillis = Long.valueOf(block.getValueTrimmed(TIME_BUDGET));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Could not parse time budget from '"+block.getValueTrimmed(TIME_BUDGET)+"'");
+			}
+			block.removeField(TIME_BUDGET);
+		}
 	}
 	
 	/**
@@ -72,6 +85,7 @@ public class SummaryStatParameters {
 	}
 	
 	// Print headings for the non-standard stats (RS#, SI-# and compounds)
+	// and, with a time budget, the list of degraded stats.
 	// Tab-deliminted (friendly for R)
 	public void printHeadings(PrintWriter out) {
 		if (rsThresholds!=null) {
@@ -87,6 +101,7 @@ public class SummaryStatParameters {
 		for (CompoundStat compound: compoundStats) {
 			out.printf("\t%s", compound.getName());
 		}
+		if (timeBudgetMillis>0) out.print("\tdegraded");
 	}
 	
 	// tab delimited
@@ -98,15 +113,80 @@ public class SummaryStatParameters {
 		}
 		if (siThresholds != null) {
 			for (int t : siThresholds) {
-				out.printf("\t%d",hStats.getReducedSplitIncompatibility(t));
+				if (hStats.isDegraded("SI-"+t)) {
+					out.print("\tNA");
+				} else {
+					out.printf("\t%d",hStats.getReducedSplitIncompatibility(t));
+				}
 			}
 		}
 		for (CompoundStat compound: compoundStats) {
-			out.printf("\t%7f", compound.evaluate(hStats));
+			double value = compound.evaluate(hStats);
+			// NaN if it uses a statistic skipped by the time budget
+			if (Double.isNaN(value)) {
+				out.print("\tNA");
+			} else {
+				out.printf("\t%7f", value);
+			}
+		}
+		if (timeBudgetMillis>0) {
+			// comma separated names, or "none"
+			StringBuilder names = new StringBuilder();
+			for (String name : hStats.getDegraded()) names.append((names.length()==0) ? "" : ",").append(name);
+			out.printf("\t%s", (names.length()==0) ? "none" : names);
 		}
 		out.println();
 	}
 	
+	// As printValues, all NA, for a row with no statistics
+	public void printMissingValues(PrintWriter out) {
+		int n = compoundStats.size();
+		if (rsThresholds!=null) n += rsThresholds.length;
+		if (siThresholds!=null) n += siThresholds.length;
+		if (timeBudgetMillis>0) n++;
+		for (int i=0; i<n; i++) out.print("\tNA");
+		out.println();
+	}
+	
+	/**
+	 * The SI-# thresholds these parameters need: siThresholds plus any SI-# used by a compound stat.
+	 * Sorted, without duplicates.
+	 */
+	public int[] requiredSIThresholds() {
+		TreeSet<Integer> thresholds = new TreeSet<Integer>();
+		addRequiredSIThresholds(thresholds);
+		return toIntArray(thresholds);
+	}
+
+	/**
+	 * The union of requiredSIThresholds() over 'paramsList'
+	 */
+	public static int[] requiredSIThresholds(List<SummaryStatParameters> paramsList) {
+		TreeSet<Integer> thresholds = new TreeSet<Integer>();
+		for (SummaryStatParameters params : paramsList) params.addRequiredSIThresholds(thresholds);
+		return toIntArray(thresholds);
+	}
+
+	private void addRequiredSIThresholds(Set<Integer> thresholds) {
+		if (siThresholds!=null) {
+			for (int t : siThresholds) thresholds.add(t);
+		}
+		for (CompoundStat compound : compoundStats) {
+			for (CompoundCoefficient coefficient : compound.getCoefficients()) {
+				for (String var : coefficient.getVariables()) {
+					if (var.matches("SI-\\d+")) thresholds.add(Integer.valueOf(var.substring(3)));
+				}
+			}
+		}
+	}
+
+	private static int[] toIntArray(Set<Integer> set) {
+		int[] array = new int[set.size()];
+		int i=0;
+		for (int x : set) array[i++] = x;
+		return array;
+	}
+
 	public SortedMap<String,Double> calculateCompoundStats(HybridStats hStats) {
 		TreeMap<String,Double> map = new TreeMap<String,Double>(); 
 		for (CompoundStat compound: compoundStats) {
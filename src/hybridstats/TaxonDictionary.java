@@ -0,0 +1,81 @@
+package hybridstats;
+
+import java.util.HashMap;
+
+import pal.misc.IdGroup;
+import pal.misc.Identifier;
+
+/**
+ * An immutable taxon set: taxon labels numbered 0..n-1, with O(1) lookup of a label's number.
+ *
+ * A Forest establishes one dictionary for all its trees (see Forest.getTaxa()), checking each tree's
+ * labels against it once. Counting classes given a Forest then check the taxon set once per forest
+ * rather than comparing IdGroups tree by tree, and can share the label to number map.
+ *
+ * @author woodhams
+ *
+ */
+public class TaxonDictionary implements IdGroup {
+	private static final long serialVersionUID = 1L;
+	private final Identifier[] ids;
+	private final HashMap<String,Integer> index;
+
+	/**
+	 * Taxa numbered in the order of 'idg'
+	 */
+	public TaxonDictionary(IdGroup idg) {
+		int n = idg.getIdCount();
+		ids = new Identifier[n];
+		index = new HashMap<String,Integer>(2*n);
+		for (int i=0; i<n; i++) {
+			ids[i] = idg.getIdentifier(i);
+			if (index.put(ids[i].getName(), i)!=null) throw new IllegalArgumentException("Duplicate taxon '"+ids[i].getName()+"'");
+		}
+	}
+
+	/**
+	 * @return true iff 'idg' has exactly this taxon set (in any order.) O(number of taxa).
+	 */
+	public boolean sameTaxa(IdGroup idg) {
+		int n = ids.length;
+		if (idg.getIdCount()!=n) return false;
+		boolean[] seen = new boolean[n];
+		for (int i=0; i<n; i++) {
+			Integer taxon = index.get(idg.getIdentifier(i).getName());
+			if (taxon==null || seen[taxon]) return false;
+			seen[taxon] = true;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of the taxon with this label, or -1 if not present.
+	 */
+	public int indexOf(String name) {
+		Integer taxon = index.get(name);
+		return (taxon==null) ? -1 : taxon;
+	}
+
+	public String getName(int i) {
+		return ids[i].getName();
+	}
+
+	/*
+	 * The label to number map. Shared: callers must not modify it.
+	 */
+	HashMap<String,Integer> getIndex() {
+		return index;
+	}
+
+	/*
+	 * Methods to implement IdGroup
+	 */
+	@Override
+	public int getIdCount()                  { return ids.length; }
+	@Override
+	public Identifier getIdentifier(int i)   { return ids[i]; }
+	@Override
+	public void setIdentifier(int i, Identifier id) { throw new UnsupportedOperationException("TaxonDictionary is immutable"); }
+	@Override
+	public int whichIdNumber(String name)    { return indexOf(name); }
+}
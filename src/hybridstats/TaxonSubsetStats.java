@@ -0,0 +1,297 @@
+package hybridstats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import palExtensions.ExtRandom;
+
+/**
+ * Split based statistics (US, UC, DC, SI) of a Forest restricted to subsets of its taxa,
+ * without pruning or reparsing trees.
+ *
+ * The split bitsets of each unique topology are found once. Restricting a tree to a taxon subset
+ * restricts each of its splits to the subset (AND with a taxon mask): splits which become trivial
+ * are dropped, and splits which become equal (within one tree) are merged. These are exactly the
+ * splits of the pruned tree, so the statistics equal those of the pruned forest.
+ *
+ * Subsets are given as masks: Utils.wordsFor(nTaxa) longs, bit i set for taxon i of getTaxa().
+ *
+ * @author woodhams
+ *
+ */
+public class TaxonSubsetStats {
+	private final TaxonDictionary taxa;
+	private final int nTaxa;
+	private final int words;
+	private final long[][] treeSplits; // per unique topology, flat split bitsets
+	private final int[] weights;
+	private final int nTrees;
+
+	/**
+	 * Results for one subset. Counts are as for the equivalent HybridStats (SI, DC as long.)
+	 */
+	public static class Result {
+		public final int nTaxa;
+		public final int uniqueSplits;   // US
+		public final int uniqueCherries; // UC
+		public final long consensusDist; // DC
+		public final long splitIncompat; // SI
+		public final int[] countByFrequency; // as SplitCounts.countByFrequency()
+
+		Result(int nTaxa, int uniqueSplits, int uniqueCherries, long consensusDist, long splitIncompat, int[] countByFrequency) {
+			this.nTaxa = nTaxa;
+			this.uniqueSplits = uniqueSplits;
+			this.uniqueCherries = uniqueCherries;
+			this.consensusDist = consensusDist;
+			this.splitIncompat = splitIncompat;
+			this.countByFrequency = countByFrequency;
+		}
+	}
+
+	public TaxonSubsetStats(Forest forest) {
+		Forest unique = forest.uniqueTopologies();
+		taxa = forest.getTaxa();
+		if (taxa==null) throw new IllegalArgumentException("Trees do not all have the same taxon set");
+		nTaxa = taxa.getIdCount();
+		words = Utils.wordsFor(nTaxa);
+		treeSplits = new long[unique.size()][];
+		weights = new int[unique.size()];
+		int total = 0;
+		for (int t=0; t<unique.size(); t++) {
+			treeSplits[t] = Utils.splitBitsets(unique.get(t), taxa.getIndex(), nTaxa);
+			weights[t] = unique.getWeight(t);
+			total += weights[t];
+		}
+		nTrees = total;
+	}
+
+	public TaxonDictionary getTaxa() {
+		return taxa;
+	}
+
+	public int getNumberTrees() {
+		return nTrees;
+	}
+
+	public long[] mask(Collection<String> taxonNames) {
+		long[] mask = new long[words];
+		for (String name : taxonNames) {
+			int taxon = taxa.indexOf(name);
+			if (taxon<0) throw new IllegalArgumentException("Taxon '"+name+"' not in taxon set");
+			mask[taxon>>>6] |= 1L<<(taxon & 63);
+		}
+		return mask;
+	}
+
+	/**
+	 * A uniformly random subset of 'size' taxa
+	 */
+	public long[] randomMask(int size, ExtRandom rng) {
+		if (size<0 || size>nTaxa) throw new IllegalArgumentException("Subset size "+size+" out of range");
+		int[] order = new int[nTaxa];
+		for (int i=0; i<nTaxa; i++) order[i] = i;
+		long[] mask = new long[words];
+		// partial Fisher-Yates shuffle
+		for (int i=0; i<size; i++) {
+			int j = i+rng.nextInt(nTaxa-i);
+			int temp = order[i]; order[i] = order[j]; order[j] = temp;
+			mask[order[i]>>>6] |= 1L<<(order[i] & 63);
+		}
+		return mask;
+	}
+
+	/**
+	 * Evaluate many subsets in parallel.
+	 * @return results in the order of 'masks'
+	 */
+	public List<Result> evaluate(List<long[]> masks, int nThreads) {
+		List<Result> results = new ArrayList<Result>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (final long[] mask : masks) {
+				futures.add(pool.submit(new Callable<Result>() {
+					public Result call() {
+						return evaluate(mask);
+					}
+				}));
+			}
+			for (Future<Result> future : futures) results.add(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted computing subset statistics", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error computing subset statistics", e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		return results;
+	}
+
+	/**
+	 * Statistics of the forest restricted to the taxa in 'mask'. Thread safe.
+	 */
+	public Result evaluate(long[] mask) {
+		if (mask.length!=words) throw new IllegalArgumentException("Mask should have "+words+" words");
+		int k = Utils.bitCount(mask, 0, words);
+		// restricted splits are normalized to exclude the first taxon of the subset
+		int first = -1;
+		for (int w=0; w<words && first<0; w++) {
+			if (mask[w]!=0) first = 64*w+Long.numberOfTrailingZeros(mask[w]);
+		}
+		SplitTable counts = new SplitTable(words);
+		SplitTable treeSet = new SplitTable(words);
+		long[] restricted = new long[words];
+		for (int t=0; t<treeSplits.length; t++) {
+			long[] splits = treeSplits[t];
+			treeSet.clear();
+			for (int offset=0; offset<splits.length; offset+=words) {
+				if (!restrict(splits, offset, mask, k, first, restricted)) continue;
+				// a split may collapse onto another split of the same tree: count it once per tree
+				if (treeSet.add(restricted, 0, 1)) counts.add(restricted, 0, weights[t]);
+			}
+		}
+		return summarize(counts, k);
+	}
+
+	/*
+	 * restricted = split restricted to mask, normalized. Returns false if the restriction is trivial.
+	 */
+	private boolean restrict(long[] splits, int offset, long[] mask, int k, int first, long[] restricted) {
+		int size = 0;
+		for (int w=0; w<words; w++) {
+			restricted[w] = splits[offset+w] & mask[w];
+			size += Long.bitCount(restricted[w]);
+		}
+		if (size<2 || size>k-2) return false;
+		if ((restricted[first>>>6] & (1L<<(first & 63)))!=0) {
+			for (int w=0; w<words; w++) restricted[w] = mask[w] & ~restricted[w];
+		}
+		return true;
+	}
+
+	private Result summarize(SplitTable counts, int k) {
+		int n = counts.size;
+		long[] bits = counts.packedKeys();
+		int[] count = counts.packedCounts();
+		int cherries = 0;
+		long consensusDist = 0;
+		int[] freq = new int[nTrees];
+		for (int i=0; i<n; i++) {
+			int size = Utils.bitCount(bits, i*words, words);
+			if (size==2 || size==k-2) cherries++;
+			consensusDist += Math.min(count[i], nTrees-count[i]);
+			freq[count[i]-1]++;
+		}
+		long splitIncompat = 0;
+		for (int i=0; i<n-1; i++) {
+			for (int j=i+1; j<n; j++) {
+				if (!Utils.compatible(bits, i*words, bits, j*words, words)) {
+					splitIncompat += (long)count[i]*count[j];
+				}
+			}
+		}
+		return new Result(k, n, cherries, consensusDist, splitIncompat, freq);
+	}
+
+	/*
+	 * Open addressing hash table of split bitsets (fixed number of words) with counts.
+	 */
+	private static class SplitTable {
+		private final int words;
+		private long[] keys;
+		private int[] counts; // 0 = empty slot
+		private int capacity;
+		int size;
+
+		SplitTable(int words) {
+			this.words = words;
+			capacity = 64;
+			keys = new long[capacity*words];
+			counts = new int[capacity];
+			size = 0;
+		}
+
+		void clear() {
+			Arrays.fill(counts, 0);
+			size = 0;
+		}
+
+		/*
+		 * @return true if the split was not already present
+		 */
+		boolean add(long[] bits, int offset, int weight) {
+			if (2*(size+1)>capacity) grow();
+			int slot = find(keys, counts, capacity, bits, offset);
+			if (counts[slot]!=0) {
+				counts[slot] += weight;
+				return false;
+			}
+			System.arraycopy(bits, offset, keys, slot*words, words);
+			counts[slot] = weight;
+			size++;
+			return true;
+		}
+
+		private int find(long[] keyArray, int[] countArray, int cap, long[] bits, int offset) {
+			int mask = cap-1;
+			int slot = hash(bits, offset) & mask;
+			while (countArray[slot]!=0) {
+				boolean same = true;
+				for (int w=0; w<words && same; w++) same = (keyArray[slot*words+w]==bits[offset+w]);
+				if (same) return slot;
+				slot = (slot+1) & mask;
+			}
+			return slot;
+		}
+
+		private int hash(long[] bits, int offset) {
+			long h = 0x9E3779B97F4A7C15L;
+			for (int w=0; w<words; w++) {
+				h = (h ^ bits[offset+w]) * 0xBF58476D1CE4E5B9L;
+				h ^= h >>> 31;
+			}
+			return (int)(h ^ (h>>>32));
+		}
+
+		private void grow() {
+			int newCapacity = 2*capacity;
+			long[] newKeys = new long[newCapacity*words];
+			int[] newCounts = new int[newCapacity];
+			for (int slot=0; slot<capacity; slot++) {
+				if (counts[slot]==0) continue;
+				int newSlot = find(newKeys, newCounts, newCapacity, keys, slot*words);
+				System.arraycopy(keys, slot*words, newKeys, newSlot*words, words);
+				newCounts[newSlot] = counts[slot];
+			}
+			keys = newKeys;
+			counts = newCounts;
+			capacity = newCapacity;
+		}
+
+		long[] packedKeys() {
+			long[] packed = new long[size*words];
+			int i = 0;
+			for (int slot=0; slot<capacity; slot++) {
+				if (counts[slot]!=0) System.arraycopy(keys, slot*words, packed, (i++)*words, words);
+			}
+			return packed;
+		}
+
+		int[] packedCounts() {
+			int[] packed = new int[size];
+			int i = 0;
+			for (int slot=0; slot<capacity; slot++) {
+				if (counts[slot]!=0) packed[i++] = counts[slot];
+			}
+			return packed;
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
 import pal.misc.IdGroup;
@@ -18,10 +19,13 @@ public class TreeTopologyCounts implements IdGroup {
 	 */
 	private static final long serialVersionUID = 1L;
 	private HashMap<String,Integer> counts;
+	// first tree seen with each topology, in order of first appearance
+	private LinkedHashMap<String,Tree> representatives;
 	private IdGroup idg;
 	
 	public TreeTopologyCounts() {
 		counts = new HashMap<String,Integer>();
+		representatives = new LinkedHashMap<String,Tree>();
 	}
 	
 	
@@ -31,25 +35,47 @@ public class TreeTopologyCounts implements IdGroup {
 	}
 
 	public void addForest(Forest forest) {
-		for (Tree tree : forest) {
-			this.addTree(tree);
+		TaxonDictionary forestTaxa = forest.getTaxa();
+		if (forestTaxa!=null) {
+			// every tree has the forest's taxon set: check that once
+			checkIdGroup(forestTaxa);
+		}
+		for (int i=0; i<forest.size(); i++) {
+			addTree(forest.get(i), forest.getWeight(i), forestTaxa==null);
 		}
 	}
 	
 	public void addTree(Tree tree) {
-		checkIdGroup(tree);
+		addTree(tree, 1);
+	}
+	
+	/**
+	 * Add a tree which stands for 'weight' identical trees.
+	 */
+	public void addTree(Tree tree, int weight) {
+		addTree(tree, weight, true);
+	}
+	
+	private void addTree(Tree tree, int weight, boolean checkTaxa) {
+		if (weight<1) throw new IllegalArgumentException("Tree weight must be positive, got "+weight);
+		if (checkTaxa) checkIdGroup(tree);
 		// Puts tree in canonical order and omits branch lengths
 		String str = ExTreeUtils.toTopologyString(tree);
 		if (counts.containsKey(str)) {
-			counts.put(str, counts.get(str)+1);
+			counts.put(str, counts.get(str)+weight);
 		} else {
-			counts.put(str, 1);
+			counts.put(str, weight);
+			representatives.put(str, tree);
 		}
 	}
 	
 	private void checkIdGroup(IdGroup newGroup) {
 		if (idg==null) {
 			idg = newGroup;
+		} else if (idg instanceof TaxonDictionary) {
+			if (!((TaxonDictionary)idg).sameTaxa(newGroup)) {
+				throw new IllegalArgumentException("Tried to add tree with incompatible IdGroup");
+			}
 		} else {
 			if (!IdGroupUtils.sameLabels(idg, newGroup)) {
 				throw new IllegalArgumentException("Tried to add tree with incompatible IdGroup");
@@ -80,6 +106,20 @@ public class TreeTopologyCounts implements IdGroup {
 		return cumulative;
 	}
 	
+	/**
+	 * Returns a weighted forest with one tree per unique topology (the first tree seen with
+	 * that topology, in order of first appearance) weighted by the topology's count.
+	 * Statistics computed on it are identical to those of the forest(s) added here, but 
+	 * per-tree work is done once per topology rather than once per tree.
+	 */
+	public Forest toWeightedForest() {
+		Forest forest = new Forest();
+		for (Entry<String,Tree> entry : representatives.entrySet()) {
+			forest.add(entry.getValue(), counts.get(entry.getKey()));
+		}
+		return forest;
+	}
+	
 	public int getNumberUniqueTopologies() {
 		return counts.size();
 	}
@@ -0,0 +1,131 @@
+package hybridstats;
+
+import java.util.HashMap;
+
+import pal.misc.IdGroup;
+import pal.tree.Tree;
+
+/**
+ * Counts, for every triple of taxa, how many (rooted) trees display each of its three
+ * resolved rooted triplets, and how many leave it unresolved (polytomy).
+ *
+ * The rooted counterpart of QuartetCounts, for rooted trees such as lineage and coalescent trees
+ * (trees are taken as rooted at their root node.) Triples {a,b,c} with a<b<c are indexed by
+ * colex rank, four counts per triple in one flat int array.
+ *
+ * Per tree, one traversal (shared with QuartetCounts) fills a table of LCA depths for all pairs of taxa, O(n^2). The triplet of
+ * {a,b,c} is then the pair with the deepest LCA (all three equal: unresolved), an O(1) test per triple,
+ * so a tree costs O(n^3) in total against O(n^4) for quartets.
+ *
+ * @author woodhams
+ *
+ */
+public class TripletCounts {
+	public static final int AB_C = 0;
+	public static final int AC_B = 1;
+	public static final int BC_A = 2;
+	public static final int UNRESOLVED = 3;
+	public static final int N_TOPOLOGIES = 4;
+
+	private final IdGroup order; // defines the taxon numbering
+	private final HashMap<String,Integer> taxonIndex;
+	private final int nTaxa;
+	private final int nTriples;
+	private final int[] counts; // counts[N_TOPOLOGIES*tripleIndex + topology]
+	private int nTrees; // sum of weights of trees added
+	// per-tree workspace, reused between trees
+	private final int[] lcaDepth; // lcaDepth[a*nTaxa+b] = depth (in edges from the root) of lca(a,b)
+	private final int[] leafOrder;
+
+	public TripletCounts(Forest forest) {
+		this(Utils.taxonOrder(forest));
+		addForest(forest);
+	}
+
+	/**
+	 * @param order: the taxon set, and the order in which taxa are numbered.
+	 */
+	public TripletCounts(IdGroup order) {
+		this.order = order;
+		nTaxa = order.getIdCount();
+		if (nTaxa<3) throw new IllegalArgumentException("Need at least three taxa for triplets");
+		long n3 = numberOfTriples(nTaxa);
+		if (n3*N_TOPOLOGIES > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many taxa ("+nTaxa+") for triplet counting");
+		nTriples = (int)n3;
+		counts = new int[N_TOPOLOGIES*nTriples];
+		taxonIndex = Utils.taxonIndex(order);
+		lcaDepth = new int[nTaxa*nTaxa];
+		leafOrder = new int[nTaxa];
+		nTrees = 0;
+	}
+
+	public static long numberOfTriples(int nTaxa) {
+		return (long)nTaxa*(nTaxa-1)*(nTaxa-2)/6;
+	}
+
+	public void addForest(Forest forest) {
+		for (int i=0; i<forest.size(); i++) {
+			addTree(forest.get(i), forest.getWeight(i));
+		}
+	}
+
+	public void addTree(Tree tree) {
+		addTree(tree, 1);
+	}
+
+	/**
+	 * Add a tree which stands for 'weight' identical trees.
+	 */
+	public void addTree(Tree tree, int weight) {
+		if (weight<1) throw new IllegalArgumentException("Tree weight must be positive, got "+weight);
+		Utils.fillLcaDepths(tree, taxonIndex, nTaxa, lcaDepth, leafOrder);
+		final int n = nTaxa;
+		final int[] d = lcaDepth;
+		int q = 0;
+		// loop order (t2 outermost) gives colex rank order of {a<b<c}
+		for (int t2=2; t2<n; t2++) {
+			for (int t1=1; t1<t2; t1++) {
+				int d12 = d[t1*n+t2];
+				for (int t0=0; t0<t1; t0++) {
+					int d01 = d[t0*n+t1];
+					int d02 = d[t0*n+t2];
+					// two of the three LCAs coincide, and the third (if different) is deeper
+					int topo;
+					if (d01>d02) {
+						topo = AB_C;
+					} else if (d02>d01) {
+						topo = AC_B;
+					} else {
+						topo = (d12>d01) ? BC_A : UNRESOLVED;
+					}
+					counts[N_TOPOLOGIES*q+topo] += weight;
+					q++;
+				}
+			}
+		}
+		nTrees += weight;
+	}
+
+	/**
+	 * Rooted triplet entropy, normalized to the range [0,1], with unresolved triplets
+	 * shared equally among the three resolutions (as QuartetCounts.entropy()).
+	 */
+	public double entropy() {
+		return Utils.resolutionEntropy(counts, nTriples, nTrees);
+	}
+
+	public int getCount(int tripleIndex, int topology) {
+		return counts[N_TOPOLOGIES*tripleIndex+topology];
+	}
+
+	/**
+	 * Colex rank of triple {a,b,c}, a<b<c: the index used by getCount.
+	 */
+	public static int tripleIndex(int a, int b, int c) {
+		return (int)((long)c*(c-1)*(c-2)/6 + (long)b*(b-1)/2 + a);
+	}
+
+	public int getNumberTriples() { return nTriples; }
+	public int getNumberTrees() { return nTrees; }
+	public IdGroup getIdGroup() { return order; }
+}
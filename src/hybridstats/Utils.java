@@ -1,7 +1,244 @@
 package hybridstats;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
+import pal.misc.IdGroup;
+import pal.tree.Node;
+import pal.tree.Tree;
+
+/*
+ * Static helpers for working with splits as raw bitsets over taxa (one bit per taxon,
+ * packed into longs) rather than as Split objects, and shared by QuartetCounts and TripletCounts.
+ */
 public class Utils {
 
+	/*
+	 * Number of longs needed to hold one bit per taxon
+	 */
+	static int wordsFor(int nTaxa) {
+		return (nTaxa+63) >>> 6;
+	}
+
+	/*
+	 * Map of taxon name to taxon number, for the taxon order of idg.
+	 * For a TaxonDictionary this is its own (shared, not to be modified) map.
+	 */
+	static HashMap<String,Integer> taxonIndex(IdGroup idg) {
+		if (idg instanceof TaxonDictionary) return ((TaxonDictionary)idg).getIndex();
+		int n = idg.getIdCount();
+		HashMap<String,Integer> index = new HashMap<String,Integer>(2*n);
+		for (int i=0; i<n; i++) index.put(idg.getIdentifier(i).getName(), i);
+		return index;
+	}
+
+	/*
+	 * The forest's TaxonDictionary if it has one, else the first tree. Either numbers taxa in
+	 * the order of the first tree.
+	 */
+	static IdGroup taxonOrder(Forest forest) {
+		TaxonDictionary taxa = forest.getTaxa();
+		return (taxa!=null) ? taxa : forest.get(0);
+	}
+
+	/**
+	 * The non-trivial splits of 'tree' as bitsets, taxa numbered by 'taxonIndex'.
+	 * Each split is normalized to the side not containing taxon 0, and each appears once
+	 * (the two branches below a bifurcating root give one split.)
+	 * @return flat array, Utils.wordsFor(nTaxa) longs per split
+	 */
+	static long[] splitBitsets(Tree tree, HashMap<String,Integer> taxonIndex, int nTaxa) {
+		int words = wordsFor(nTaxa);
+		SplitCollector collector = new SplitCollector(taxonIndex, nTaxa, words);
+		collector.collect(tree.getRoot());
+		if (collector.nLeaves!=nTaxa) throw new IllegalArgumentException("Tree has "+collector.nLeaves+" leaves, expected "+nTaxa);
+		long[] result = new long[collector.nSplits*words];
+		System.arraycopy(collector.splits, 0, result, 0, result.length);
+		return result;
+	}
+
+	/*
+	 * Two splits, both normalized to exclude taxon 0 (so their complements always intersect)
+	 * are compatible iff they are disjoint or one contains the other.
+	 */
+	static boolean compatible(long[] a, int offsetA, long[] b, int offsetB, int words) {
+		boolean disjoint = true, aInB = true, bInA = true;
+		for (int w=0; w<words; w++) {
+			long x = a[offsetA+w];
+			long y = b[offsetB+w];
+			if ((x & y)  != 0) disjoint = false;
+			if ((x & ~y) != 0) aInB = false;
+			if ((y & ~x) != 0) bInA = false;
+		}
+		return disjoint || aInB || bInA;
+	}
+
+	static int bitCount(long[] bits, int offset, int words) {
+		int count = 0;
+		for (int w=0; w<words; w++) count += Long.bitCount(bits[offset+w]);
+		return count;
+	}
+
+	/*
+	 * Fill lcaDepth[a*nTaxa+b] with the depth (in edges from the root) of the lowest common ancestor
+	 * of taxa a and b, for all a!=b: each pair of leaves in different child subtrees of a node has that
+	 * node as lca. leafOrder is workspace, nTaxa long. O(nTaxa^2).
+	 */
+	static void fillLcaDepths(Tree tree, HashMap<String,Integer> taxonIndex, int nTaxa, int[] lcaDepth, int[] leafOrder) {
+		int nLeaves = lcaTraverse(tree.getRoot(), 0, 0, taxonIndex, nTaxa, lcaDepth, leafOrder);
+		if (nLeaves!=nTaxa) throw new IllegalArgumentException("Tree has "+nLeaves+" leaves, expected "+nTaxa);
+	}
+
+	/*
+	 * Returns the number of leaves seen (in leafOrder) after traversing node's subtree.
+	 */
+	private static int lcaTraverse(Node node, int nodeDepth, int nLeavesSeen, HashMap<String,Integer> taxonIndex,
+			int nTaxa, int[] lcaDepth, int[] leafOrder) {
+		if (node.isLeaf()) {
+			Integer taxon = taxonIndex.get(node.getIdentifier().getName());
+			if (taxon==null) throw new IllegalArgumentException("Taxon '"+node.getIdentifier().getName()+"' not in taxon set");
+			if (nLeavesSeen>=nTaxa) throw new IllegalArgumentException("Tree has too many leaves");
+			leafOrder[nLeavesSeen] = taxon;
+			return nLeavesSeen+1;
+		}
+		int start = nLeavesSeen;
+		for (int c=0; c<node.getChildCount(); c++) {
+			int childStart = nLeavesSeen;
+			nLeavesSeen = lcaTraverse(node.getChild(c), nodeDepth+1, nLeavesSeen, taxonIndex, nTaxa, lcaDepth, leafOrder);
+			// pair each leaf under this child with each leaf under earlier children
+			for (int i=childStart; i<nLeavesSeen; i++) {
+				int x = leafOrder[i];
+				for (int j=start; j<childStart; j++) {
+					int y = leafOrder[j];
+					lcaDepth[x*nTaxa+y] = nodeDepth;
+					lcaDepth[y*nTaxa+x] = nodeDepth;
+				}
+			}
+		}
+		return nLeavesSeen;
+	}
+
+	/*
+	 * log(i) for i=0..nTrees (log[0] unused)
+	 */
+	static double[] logTable(int nTrees) {
+		if (nTrees==0) throw new IllegalStateException("No trees counted");
+		double[] log = new double[nTrees+1];
+		for (int i=1; i<=nTrees; i++) log[i] = Math.log(i);
+		return log;
+	}
+
+	/*
+	 * For counts laid out as in QuartetCounts and TripletCounts (three resolutions then unresolved,
+	 * from 'base'): sum x_t log(x_t) over the three resolutions, where x_t is the count of resolution t
+	 * plus a third of the unresolved count.
+	 */
+	static double sumXLogX(int[] counts, int base, double[] log) {
+		int unresolved = counts[base+3];
+		double sum = 0;
+		if (unresolved==0) {
+			for (int t=0; t<3; t++) {
+				int n = counts[base+t];
+				if (n>0) sum += n*log[n];
+			}
+		} else {
+			double share = unresolved/3.0;
+			for (int t=0; t<3; t++) {
+				double x = counts[base+t]+share;
+				sum += x*Math.log(x);
+			}
+		}
+		return sum;
+	}
+
+	/*
+	 * Entropy of the resolutions of 'nGroups' groups (quadruples, triples) counted over nTrees trees,
+	 * counts four per group as for sumXLogX, normalized to [0,1].
+	 */
+	static double resolutionEntropy(int[] counts, int nGroups, int nTrees) {
+		double[] log = logTable(nTrees);
+		double sum = 0;
+		for (int g=0; g<nGroups; g++) {
+			sum += sumXLogX(counts, 4*g, log);
+		}
+		// same result as sum(-p_i log(p_i)) over all groups and resolutions where p_i = proportion of trees showing it.
+		double entropy = nGroups*log[nTrees]-sum/nTrees;
+		return entropy / (nGroups*Math.log(3));
+	}
+
+	/*
+	 * Post order traversal, building the leaf set of each subtree on a stack of bitsets.
+	 */
+	private static class SplitCollector {
+		private final HashMap<String,Integer> taxonIndex;
+		private final int nTaxa, words;
+		private long[] splits; // output, words per split
+		private long[] stack;  // leaf sets of subtrees in progress, words per entry
+		private int nSplits, nLeaves, depth;
+
+		SplitCollector(HashMap<String,Integer> taxonIndex, int nTaxa, int words) {
+			this.taxonIndex = taxonIndex;
+			this.nTaxa = nTaxa;
+			this.words = words;
+			splits = new long[nTaxa*words];
+			stack = new long[(nTaxa+1)*words];
+			nSplits = 0;
+			nLeaves = 0;
+			depth = 0;
+		}
+
+		void collect(Node root) {
+			int nChildren = root.getChildCount();
+			for (int c=0; c<nChildren; c++) {
+				visit(root.getChild(c));
+				// Below a bifurcating root, the second child's split is the complement of the first.
+				if (!(nChildren==2 && c==1)) emit(depth-1);
+				depth--;
+			}
+		}
 
+		/*
+		 * Pushes the leaf set of node's subtree onto the stack, and emits the splits strictly inside it.
+		 */
+		private void visit(Node node) {
+			int top = depth*words;
+			if (top+words>stack.length) stack = Arrays.copyOf(stack, 2*stack.length);
+			for (int w=0; w<words; w++) stack[top+w] = 0;
+			depth++;
+			if (node.isLeaf()) {
+				Integer taxon = taxonIndex.get(node.getIdentifier().getName());
+				if (taxon==null) throw new IllegalArgumentException("Taxon '"+node.getIdentifier().getName()+"' not in taxon set");
+				stack[top+(taxon>>>6)] |= 1L<<(taxon & 63);
+				nLeaves++;
+				return;
+			}
+			int nChildren = node.getChildCount();
+			for (int c=0; c<nChildren; c++) {
+				visit(node.getChild(c));
+				// a unary node has the same leaf set as its child: don't emit it twice
+				if (nChildren>1) emit(depth-1);
+				int childTop = (depth-1)*words;
+				for (int w=0; w<words; w++) stack[top+w] |= stack[childTop+w];
+				depth--;
+			}
+		}
 
+		private void emit(int level) {
+			int from = level*words;
+			int size = bitCount(stack, from, words);
+			if (size<2 || size>nTaxa-2) return; // trivial
+			int to = nSplits*words;
+			if (to+words>splits.length) splits = Arrays.copyOf(splits, 2*splits.length);
+			boolean complement = (stack[from] & 1L)!=0; // contains taxon 0
+			for (int w=0; w<words; w++) {
+				splits[to+w] = complement ? ~stack[from+w] : stack[from+w];
+			}
+			if (complement) {
+				// clear the bits beyond nTaxa
+				int spare = words*64-nTaxa;
+				if (spare>0) splits[to+words-1] &= -1L >>> spare;
+			}
+			nSplits++;
+		}
+	}
 }